@@ -1,30 +0,0 @@
-/*
-* Copyright 2014 Basis Technology Corp.
-*
-* Licensed under the Apache License, Version 2.0 (the "License");
-* you may not use this file except in compliance with the License.
-* You may obtain a copy of the License at
-*
-* http://www.apache.org/licenses/LICENSE-2.0
-*
-* Unless required by applicable law or agreed to in writing, software
-* distributed under the License is distributed on an "AS IS" BASIS,
-* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
-* See the License for the specific language governing permissions and
-* limitations under the License.
-*/
-
-package com.basistech.tclre;
-
-/**
- * Arc pointer used in DFA.
- */
-class Arcp {
-    final StateSet ss;
-    final short co;
-
-    Arcp(StateSet ss, short co) {
-        this.ss = ss;
-        this.co = co;
-    }
-}
@@ -17,12 +17,14 @@
 package com.basistech.tclre;
 
 import java.io.Serializable;
+import java.util.Arrays;
 
 /**
  * Compacted (runtime) NFA.
  */
 class Cnfa implements Serializable {
     static final long serialVersionUID = 1L;
+    private static final int MAX_PREFIX = 256;
     final int ncolors;        /* number of colors */
     final boolean hasLacons;
     final int pre;        /* setup state number */
@@ -32,6 +34,9 @@ class Cnfa implements Serializable {
     final long[] arcs;
     // each state is an index of an arc.
     final int[] states;
+    private transient volatile DfaCache cache;
+    private transient volatile DfaCache reachCache;
+    private transient volatile Cnfa unanchored;
 
 
     Cnfa(int ncolors, boolean hasLacons, int pre, int post, short[] bos, short[] eos, long[] arcs, int[] states) {
@@ -45,6 +50,249 @@ class Cnfa implements Serializable {
         this.states = states;
     }
 
+    /**
+     * @return the state set cache for this machine, shared by all the {@link Dfa}s that run it.
+     */
+    DfaCache cache() {
+        DfaCache result = cache;
+        if (result == null) {
+            synchronized (this) {
+                result = cache;
+                if (result == null) {
+                    result = new DfaCache(this);
+                    cache = result;
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return a second state set cache for this machine, for the state sets that {@link Dfa#reach} starts
+     * its second pass from, when {@link #cache} is complete and so can't take new ones.
+     */
+    DfaCache reachCache() {
+        DfaCache result = reachCache;
+        if (result == null) {
+            synchronized (this) {
+                result = reachCache;
+                if (result == null) {
+                    result = new DfaCache(this);
+                    reachCache = result;
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return the most memory that the state set cache of this machine can come to use.
+     */
+    long maxCacheBytes() {
+        DfaCache result = cache;
+        return result != null && result.complete() ? result.bytes() : DfaCache.maxBytes(this);
+    }
+
+    /**
+     * @return the most memory that the state set cache of the copy made by {@link #unanchored} can come to use.
+     * This doesn't make the copy; it has the same states and colors, so the same cap.
+     */
+    long maxUnanchoredCacheBytes() {
+        Cnfa copy = unanchored;
+        return copy != null ? copy.maxCacheBytes() : DfaCache.maxBytes(this);
+    }
+
+    /**
+     * Start the cache of this machine with a complete table, built by {@link DfaCache#determinize}.
+     */
+    synchronized void pin(DfaCache.Table complete) {
+        cache = new DfaCache(this, complete);
+    }
+
+    /**
+     * Find the literal text that every match of this machine starts with. This follows
+     * the machine from the state after pre for as long as each state has a single arc,
+     * on a color that has a single codepoint.
+     * @return the text, which is empty if there's nothing of the sort.
+     */
+    String literalPrefix(RuntimeColorMap cm) {
+        StringBuilder prefix = new StringBuilder();
+        int state = -1;
+        for (int ax = states[pre] + 1; carcColor(arcs[ax]) != Constants.COLORLESS; ax++) {
+            int target = carcTarget(arcs[ax]);
+            if (state != -1 && state != target) {
+                return "";
+            }
+            state = target;
+        }
+        // the length limit is just in case of a cycle, which would be a machine that can't match at all.
+        while (state != -1 && prefix.length() < MAX_PREFIX) {
+            int ax = states[state] + 1;
+            short color = carcColor(arcs[ax]);
+            if (color == Constants.COLORLESS || color >= ncolors
+                    || carcColor(arcs[ax + 1]) != Constants.COLORLESS) {
+                break;
+            }
+            int codepoint = cm.singleton(color);
+            if (codepoint == -1) {
+                break;
+            }
+            prefix.appendCodePoint(codepoint);
+            state = carcTarget(arcs[ax]);
+        }
+        return prefix.toString();
+    }
+
+    /**
+     * Find the colors that a match of this machine can start with: those of the arcs out of
+     * the states that follow pre.
+     * @return a flag for each color, or null if that doesn't narrow things down: if the machine
+     *         can match the empty string, if there's a lookahead constraint at the start, or if any
+     *         color will do.
+     */
+    boolean[] firstColors() {
+        boolean[] first = new boolean[ncolors];
+        int count = 0;
+        for (int px = states[pre] + 1; carcColor(arcs[px]) != Constants.COLORLESS; px++) {
+            int state = carcTarget(arcs[px]);
+            for (int ax = states[state] + 1; carcColor(arcs[ax]) != Constants.COLORLESS; ax++) {
+                short color = carcColor(arcs[ax]);
+                if (color >= ncolors || carcTarget(arcs[ax]) == post) {
+                    return null;
+                }
+                if (!first[color]) {
+                    first[color] = true;
+                    count++;
+                }
+            }
+        }
+        // the four pseudocolors never turn up in the data.
+        return count < ncolors - 4 ? first : null;
+    }
+
+    /**
+     * Find the most steps that a run of this machine can take to get from pre to post. That counts the
+     * step on the codepoint (or BOS) before where the run starts, and the one on the codepoint (or EOS)
+     * after the end of the match.
+     * @return the number of steps, or -1 if loops in the machine leave it without a limit.
+     */
+    int maxSteps() {
+        int nstates = states.length;
+        int[] ins = new int[nstates]; // the number of arcs into each state
+        for (int state = 0; state < nstates; state++) {
+            for (int ax = states[state] + 1; carcColor(arcs[ax]) != Constants.COLORLESS; ax++) {
+                ins[carcTarget(arcs[ax])]++;
+            }
+        }
+        // visit the states in topological order; the longest path to each one is known when it's visited.
+        int[] queue = new int[nstates];
+        int tail = 0;
+        for (int state = 0; state < nstates; state++) {
+            if (ins[state] == 0) {
+                queue[tail++] = state;
+            }
+        }
+        int[] steps = new int[nstates];
+        Arrays.fill(steps, -1);
+        steps[pre] = 0;
+        for (int head = 0; head < tail; head++) {
+            int state = queue[head];
+            for (int ax = states[state] + 1; carcColor(arcs[ax]) != Constants.COLORLESS; ax++) {
+                int target = carcTarget(arcs[ax]);
+                if (steps[state] != -1) {
+                    steps[target] = Math.max(steps[target], steps[state] + 1);
+                }
+                if (--ins[target] == 0) {
+                    queue[tail++] = target;
+                }
+            }
+        }
+        return tail < nstates ? -1 : steps[post];
+    }
+
+    /**
+     * Make the mirror image of this machine, which runs backwards over the data: every arc
+     * turns around, pre and post trade places, and so do the BOS and EOS colors. So the first
+     * step of the reversed machine is on the codepoint after the end of a match, and it reaches
+     * post on the codepoint before the start. There's no such thing for a machine with lookahead
+     * constraints, since those only look forward.
+     * @return the reversed machine.
+     */
+    Cnfa reverse() {
+        assert !hasLacons;
+        int nstates = states.length;
+        int[] ins = new int[nstates]; // the number of arcs into each state
+        int narcs = 0;
+        for (int state = 0; state < nstates; state++) {
+            for (int ax = states[state] + 1; carcColor(arcs[ax]) != Constants.COLORLESS; ax++) {
+                ins[carcTarget(arcs[ax])]++;
+                narcs++;
+            }
+        }
+        // as in Nfa.compact(), a flags arc, the arcs, and an end marker for each state.
+        long[] reversedArcs = new long[narcs + 2 * nstates];
+        int[] reversedStates = new int[nstates];
+        int[] next = new int[nstates];
+        int arcIndex = 0;
+        for (int state = 0; state < nstates; state++) {
+            reversedStates[state] = arcIndex;
+            reversedArcs[arcIndex] = packCarc((short)0, 0);
+            next[state] = arcIndex + 1;
+            arcIndex += 1 + ins[state];
+            reversedArcs[arcIndex++] = packCarc(Constants.COLORLESS, 0);
+        }
+        for (int state = 0; state < nstates; state++) {
+            for (int ax = states[state] + 1; carcColor(arcs[ax]) != Constants.COLORLESS; ax++) {
+                reversedArcs[next[carcTarget(arcs[ax])]++] = packCarc(carcColor(arcs[ax]), state);
+            }
+        }
+        /* mark no-progress states, as Nfa.compact() does */
+        reversedArcs[reversedStates[post]] = packCarc((short)1, 0);
+        for (int ax = reversedStates[post] + 1; carcColor(reversedArcs[ax]) != Constants.COLORLESS; ax++) {
+            reversedArcs[reversedStates[carcTarget(reversedArcs[ax])]] = packCarc((short)1, 0);
+        }
+        return new Cnfa(ncolors, false, post, pre, eos.clone(), bos.clone(), reversedArcs, reversedStates);
+    }
+
+    /**
+     * Make a copy of this machine with a loop on pre for every color, so that pre stays in the state set
+     * at every step, and a match can start (or, for a reversed machine, end) anywhere along the way.
+     * The states keep their numbers, so a state set of the copy is also one of this machine.
+     * The copy is made once, when it is first wanted.
+     * @return the copy.
+     */
+    Cnfa unanchored() {
+        Cnfa result = unanchored;
+        if (result == null) {
+            synchronized (this) {
+                result = unanchored;
+                if (result == null) {
+                    assert !hasLacons;
+                    long[] loopedArcs = new long[arcs.length + ncolors];
+                    int[] loopedStates = new int[states.length];
+                    int arcIndex = 0;
+                    for (int state = 0; state < states.length; state++) {
+                        loopedStates[state] = arcIndex;
+                        int ax = states[state];
+                        loopedArcs[arcIndex++] = arcs[ax++];
+                        while (carcColor(arcs[ax]) != Constants.COLORLESS) {
+                            loopedArcs[arcIndex++] = arcs[ax++];
+                        }
+                        if (state == pre) {
+                            for (short co = 0; co < ncolors; co++) {
+                                loopedArcs[arcIndex++] = packCarc(co, pre);
+                            }
+                        }
+                        loopedArcs[arcIndex++] = arcs[ax];
+                    }
+                    result = new Cnfa(ncolors, false, pre, post, bos, eos, loopedArcs, loopedStates);
+                    unanchored = result;
+                }
+            }
+        }
+        return result;
+    }
+
     static long packCarc(short color, int targetState) {
         return ((long)color << 32) | targetState;
     }
@@ -134,6 +134,9 @@ class Compiler {
             case NLANCH:
                 this.cflags |= Flags.REG_NLANCH;
                 break;
+            case EAGER:
+                this.cflags |= Flags.REG_EAGER;
+                break;
             default:
                 throw new RuntimeException("Can't handle " + f);
             }
@@ -222,21 +225,23 @@ class Compiler {
         nfa.optimize();
         makesearch(nfa);
         Cnfa search = nfa.compact();
+        /* and the main NFA backwards, for finding where a match starts */
+        Cnfa reverse = tree.cnfa.hasLacons ? null : tree.cnfa.reverse();
 
     /* looks okay, package it up */
         int nsub = subs.size();
-        SubstringComparator compare;
-        if (0 != (cflags & Flags.REG_ICASE)) {
-            compare = new Comparer(true);
-        } else {
-            compare = new Comparer(false);
-        }
-
         Guts guts = new Guts(cflags, info, nsub, new RuntimeSubexpression(tree),
-                search, ntree, cm, compare, lacons);
+                search, reverse, ntree, cm, comparer(cflags), lacons);
         return new HsrePattern(new String(pattern, 0, pattern.length), originalFlags, info, nsub, guts);
     }
 
+    /**
+     * @return the comparison of substrings, for back-references, that goes with some compile flags.
+     */
+    static SubstringComparator comparer(int cflags) {
+        return new Comparer(0 != (cflags & Flags.REG_ICASE));
+    }
+
     private static int pair(int a, int b) {
         return a * 4 + b;
     }
@@ -0,0 +1,135 @@
+/*
+* Copyright 2014 Basis Technology Corp.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package com.basistech.tclre;
+
+import com.google.common.base.MoreObjects;
+
+import java.io.IOException;
+import java.io.ObjectStreamException;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.util.EnumSet;
+
+/**
+ * A pattern in a {@link HsrePatternDatabase}. Nothing is read from the database until the pattern is used;
+ * the first matcher reads the whole pattern, which is kept from then on. The string and flags of the pattern
+ * can be had without that.
+ * <p>
+ * The database has already been checked when it was opened, so a failure to read a pattern here
+ * means that the file changed or was damaged since then; that is a {@link RegexRuntimeException}.
+ * </p>
+ */
+final class DatabasePattern implements RePattern, Serializable {
+    static final long serialVersionUID = 1L;
+    private final transient ByteBuffer database;
+    private final transient int offset;
+    private transient volatile HsrePattern pattern;
+
+    DatabasePattern(ByteBuffer database, int offset) {
+        this.database = database;
+        this.offset = offset;
+    }
+
+    /**
+     * @return the pattern, read from the database the first time.
+     */
+    HsrePattern get() {
+        HsrePattern result = pattern;
+        if (result == null) {
+            synchronized (this) {
+                result = pattern;
+                if (result == null) {
+                    try {
+                        result = PatternCodec.readPattern(database, offset);
+                    } catch (IOException e) {
+                        throw new RegexRuntimeException("Failed to read pattern from database", e);
+                    }
+                    pattern = result;
+                }
+            }
+        }
+        return result;
+    }
+
+    boolean isRead() {
+        return pattern != null;
+    }
+
+    @Override
+    public ReMatcher matcher(CharSequence data, ExecFlags... flags) {
+        return get().matcher(data, flags);
+    }
+
+    @Override
+    public ReMatcher matcher(CharSequence data, EnumSet<ExecFlags> flags) {
+        return get().matcher(data, flags);
+    }
+
+    @Override
+    public ReMatcher matcher(ByteBuffer utf8, ExecFlags... flags) {
+        return get().matcher(utf8, flags);
+    }
+
+    @Override
+    public ReMatcher matcher(ByteBuffer utf8, EnumSet<ExecFlags> flags) {
+        return get().matcher(utf8, flags);
+    }
+
+    @Override
+    public ReStreamMatcher streamMatcher(ExecFlags... flags) {
+        return get().streamMatcher(flags);
+    }
+
+    @Override
+    public String pattern() {
+        HsrePattern result = pattern;
+        if (result != null) {
+            return result.pattern();
+        }
+        try {
+            return PatternCodec.readOriginal(database, offset);
+        } catch (IOException e) {
+            throw new RegexRuntimeException("Failed to read pattern from database", e);
+        }
+    }
+
+    @Override
+    public EnumSet<PatternFlags> flags() {
+        HsrePattern result = pattern;
+        if (result != null) {
+            return result.flags();
+        }
+        try {
+            return PatternCodec.readOriginalFlags(database, offset);
+        } catch (IOException e) {
+            throw new RegexRuntimeException("Failed to read pattern from database", e);
+        }
+    }
+
+    /* the database doesn't go along; the pattern itself does. */
+    private Object writeReplace() throws ObjectStreamException {
+        return get();
+    }
+
+    @Override
+    public String toString() {
+        return MoreObjects.toStringHelper(this)
+                .add("pattern", pattern())
+                .add("flags", flags())
+                .toString();
+    }
+}
@@ -16,104 +16,112 @@
 
 package com.basistech.tclre;
 
-import it.unimi.dsi.fastutil.objects.Object2ObjectMap;
-import it.unimi.dsi.fastutil.objects.Object2ObjectOpenHashMap;
-
-import java.util.BitSet;
+import java.util.Arrays;
 
 /**
  * Runtime DFA.
+ * The state sets themselves live in the {@link DfaCache} of the machine, and are shared;
+ * here, a state set is just its integer id in the cache table.
+ * What's private to a Dfa is the record of where the current match has been.
  */
 class Dfa {
-    final Object2ObjectMap<BitSet, StateSet> stateSets;
+    static final int STEP_GOT = 1; // reached some state
+    static final int STEP_POST = 2; // reached the post state
+    static final int STEP_PROGRESS = 4; // reached a state that makes progress
+    final DfaCache cache;
     final int nstates;
-    final int ncolors; // length of outarc and inchain vectors (really?)
+    final int ncolors; // length of a row of transitions
     final Cnfa cnfa;
-    final RuntimeColorMap cm;
     final Runtime runtime;
+    DfaCache.Table table; // the table our state set ids refer to
+    private int lastpost; // last point at which we were in a poststate
+    private int lastnopr; // last point at which we were in a no-progress state
+    private final long[] work; // scratch for miss; one bit per NFA state
+    private final int[] target = new int[1]; // scratch for miss
+    /*
+     * Where the last run of shortest or longest got to, when the runtime carries runs over (see Runtime#carry):
+     * the states at savedAt of a run from savedStart, and the record of where it had been. The data up to
+     * savedAt doesn't change as more arrives, so a run from the same start can pick up from there.
+     */
+    private int savedStart = -1;
+    private int savedMin;
+    private boolean savedLongest;
+    private int savedAt;
+    private long[] savedStates; // as held by the table, which never changes them
+    private int savedPost;
+    private int savedNopr;
 
     Dfa(Runtime runtime, Cnfa cnfa) {
+        this(runtime, cnfa, cnfa.cache());
+    }
+
+    Dfa(Runtime runtime, Cnfa cnfa, DfaCache cache) {
         this.runtime = runtime;
-        this.cm = runtime.g.cm;
         this.cnfa = cnfa;
-        /*
-         * Note that this isn't a cache;
-         * Benson believes that the maximum size here is proportional
-         * to the complexity of the machine, not to the input.
-         */
-        stateSets = new Object2ObjectOpenHashMap<BitSet, StateSet>();
+        this.cache = cache;
         nstates = cnfa.states.length;
         ncolors = cnfa.ncolors;
+        work = new long[DfaCache.words(nstates)];
     }
 
     /**
      * Called at the start of a match.
-     * arguably we could just construct a new DFA each time.
      */
-    StateSet initialize(int start) {
-        // Discard state sets; reuse would be faster if we kept them,
-        // but then we'd need the real cache.
-        stateSets.clear();
-        StateSet stateSet = new StateSet(nstates, ncolors);
-        stateSet.states.set(cnfa.pre);
-        stateSet.noprogress = true;
-        // Insert into hash table based on that one state.
-        stateSets.put(stateSet.states, stateSet);
-        stateSet.setLastSeen(start);
-        return stateSet;
+    int initialize(int start) {
+        lastpost = -1;
+        lastnopr = start;
+        table = cache.table();
+        seen(DfaCache.INITIAL, start);
+        return DfaCache.INITIAL;
     }
 
     /**
-     * 'miss' -- the state set was not found in the stateSets.
+     * Note arrival in a state set at a particular point. In C, this was the 'lastseen' field
+     * of the state set, but state sets are shared, and so can't carry this around.
+     * Since the Dfa only moves forward, the last arrival is the interesting one.
+     */
+    private void seen(int ss, int cp) {
+        if (DfaCache.bit(table.post, ss)) {
+            lastpost = cp;
+        }
+        if (DfaCache.bit(table.noprogress, ss)) {
+            lastnopr = cp;
+        }
+    }
+
+    private boolean poststate(int ss) {
+        return ss != DfaCache.DEAD && DfaCache.bit(table.post, ss);
+    }
+
+    /**
+     * 'miss' -- the transition was not found in the transition table.
+     * This may move the Dfa to a new cache table; callers must refetch anything they took from it.
      *
      * @param co
      * @param cp
-     * @return
+     * @return the id of the new state set, or {@link DfaCache#DEAD}.
      */
-    StateSet miss(StateSet css, short co, int cp) {
-        if (css.outs[co] != null) {
-            return css.outs[co];
+    int miss(int css, short co, int cp) {
+        int known = DfaCache.next(table.trans, css * ncolors + co);
+        if (known != DfaCache.UNKNOWN) {
+            return known;
         }
 
          /* first, what set of states would we end up in? */
-        BitSet work = new BitSet(nstates);
-        boolean ispost = false;
-        boolean noprogress = true;
-        boolean gotstate = false;
-
-        for (int i = 0; i < nstates; i++) {
-            if (css.states.get(i)) {
-                long ca;
-                int ax;
-                short caco;
-                int catarget;
-                for (ax = cnfa.states[i] + 1,
-                        ca = cnfa.arcs[ax],
-                        caco = Cnfa.carcColor(ca),
-                        catarget = Cnfa.carcTarget(ca);
-                     caco != Constants.COLORLESS;
-                     ax++, ca = cnfa.arcs[ax], caco = Cnfa.carcColor(ca), catarget = Cnfa.carcTarget(ca)) {
+        long[] work = this.work;
+        Arrays.fill(work, 0L);
+        int stepped = step(cnfa, table.states[css], co, work);
+        boolean ispost = 0 != (stepped & STEP_POST);
+        boolean noprogress = 0 == (stepped & STEP_PROGRESS);
+        boolean gotstate = 0 != (stepped & STEP_GOT);
 
-                    if (caco == co) {
-                        work.set(catarget);
-                        gotstate = true;
-                        if (catarget == cnfa.post) {
-                            ispost = true;
-                        }
-                        // get target state, index arcs, get color, compare to 0.
-                        if (0 == Cnfa.carcColor(cnfa.arcs[cnfa.states[catarget]])) {
-                            noprogress = false;
-                        }
-                    }
-                }
-            }
-        }
         boolean dolacons = gotstate && cnfa.hasLacons;
         boolean sawlacons = false;
         while (dolacons) { /* transitive closure */
             dolacons = false;
-            for (int i = 0; i < nstates; i++) {
-                if (work.get(i)) {
+            for (int wx = 0; wx < work.length; wx++) {
+                for (long bits = work[wx]; bits != 0; bits &= bits - 1) {
+                    int i = (wx << 6) + Long.numberOfTrailingZeros(bits);
                     long ca;
                     int ax;
                     short caco;
@@ -125,13 +133,13 @@ class Dfa {
                             continue; /* NOTE CONTINUE */
                         }
                         sawlacons = true;
-                        if (work.get(catarget)) {
+                        if ((work[catarget >>> 6] & (1L << catarget)) != 0) {
                             continue; /* NOTE CONTINUE */
                         }
                         if (!lacon(cp, caco)) {
                             continue; /* NOTE CONTINUE */
                         }
-                        work.set(catarget);
+                        work[catarget >>> 6] |= 1L << catarget;
                         dolacons = true;
                         if (catarget == cnfa.post) {
                             ispost = true;
@@ -144,40 +152,61 @@ class Dfa {
             }
         }
 
-        if (!gotstate) {
-            return null;
-        }
+        /* lastseen to be dealt with by caller */
+        // this only allocates if the state set is new. When there are no states,
+        // no lookahead was consulted, so that outcome can be recorded too.
+        table = cache.transition(table, css, co, gotstate ? work : null, ispost, noprogress, !sawlacons, target);
+        return target[0];
+    }
 
-        StateSet stateSet = stateSets.get(work);
-        if (stateSet == null) {
-            stateSet = new StateSet(work, ncolors);
-            stateSet.ins = new Arcp(null, Constants.WHITE);
-            stateSet.poststate = ispost;
-            stateSet.noprogress |= noprogress;
-            /* lastseen to be dealt with by caller */
-            stateSets.put(work, stateSet);
-        }
-        if (!sawlacons) {
-            css.outs[co] = stateSet;
-            css.inchain[co] = stateSet.ins;
-            stateSet.ins = new Arcp(css, co);
-        }
+    /**
+     * Follow the arcs of color 'co' out of a set of states. This is the part of
+     * {@link #miss} that doesn't depend on the data; it is also used to build tables ahead of time.
+     *
+     * @param states the states to start from
+     * @param work receives the states we end up in; must start out empty
+     * @return a combination of the STEP_ flags
+     */
+    static int step(Cnfa cnfa, long[] states, short co, long[] work) {
+        int result = 0;
+        for (int wx = 0; wx < states.length; wx++) {
+            for (long bits = states[wx]; bits != 0; bits &= bits - 1) {
+                int i = (wx << 6) + Long.numberOfTrailingZeros(bits);
+                long ca;
+                int ax;
+                short caco;
+                int catarget;
+                for (ax = cnfa.states[i] + 1,
+                        ca = cnfa.arcs[ax],
+                        caco = Cnfa.carcColor(ca),
+                        catarget = Cnfa.carcTarget(ca);
+                     caco != Constants.COLORLESS;
+                     ax++, ca = cnfa.arcs[ax], caco = Cnfa.carcColor(ca), catarget = Cnfa.carcTarget(ca)) {
 
-        return stateSet;
+                    if (caco == co) {
+                        work[catarget >>> 6] |= 1L << catarget;
+                        result |= STEP_GOT;
+                        if (catarget == cnfa.post) {
+                            result |= STEP_POST;
+                        }
+                        // get target state, index arcs, get color, compare to 0.
+                        if (0 == Cnfa.carcColor(cnfa.arcs[cnfa.states[catarget]])) {
+                            result |= STEP_PROGRESS;
+                        }
+                    }
+                }
+            }
+        }
+        return result;
     }
 
     boolean lacon(int cp, short co) {
-        int end;
-
         int n = co - cnfa.ncolors;
         // compare this to com.basistech.tclre.Nfa.compact(), the LACONS case.
         // that adds a.co to ncolors. So that means that you'd think that the lacons
         // indexing would be related... The 'arc' should have a 'color' which is an index
         //
-        RuntimeSubexpression subex = runtime.g.lookaheadConstraintMachine(n);
-        Dfa d = new Dfa(runtime, subex.machine);
-        end = d.longest(cp, runtime.data.length(), null);
-        return (subex.number != 0) ? (end != -1) : (end == -1);
+        return runtime.lacon(n, cp);
     }
 
     /**
@@ -186,104 +215,270 @@ class Dfa {
      * @return endpoint or -1
      */
     int longest(int start, int stop, boolean[] hitstop) {
+        Runtime runtime = this.runtime;
         int cp;
-        int realstop = (stop == runtime.dataLength) ? stop : stop + 1;
+        int realstop = (stop == runtime.dataEnd) ? stop : stop + 1;
         short co;
-        StateSet css;
+        int css;
         int post;
 
-    /* initialize */
-        css = initialize(start);
-        cp = start;
         if (hitstop != null) {
             hitstop[0] = false;
         }
-
-    /* startup */
-        if (cp == 0) {
-            co = cnfa.bos[0 != (runtime.eflags & Flags.REG_NOTBOL) ? 0 : 1];
+        if (resumable(true, start, start, realstop)) {
+            css = resume();
+            cp = savedAt;
         } else {
-            char theChar = runtime.data.charAt(cp - 1);
-            if (Character.isLowSurrogate(theChar)) {
-                // collect the other end of the surrogate.
-                theChar = runtime.data.charAt(cp - 2);
-                char high = theChar;
-                int codepoint = Character.toCodePoint(high, theChar);
-                co = cm.getcolor(codepoint); // and get a color for the pair.
+        /* initialize */
+            css = initialize(start);
+            cp = start;
+
+        /* startup */
+            if (cp == runtime.dataStart) {
+                co = cnfa.bos[0 != (runtime.eflags & Flags.REG_NOTBOL) ? 0 : 1];
             } else {
-                co = cm.getcolor(theChar);
+                co = runtime.colorAt(runtime.previous(cp));
+            }
+            css = miss(css, co, cp);
+            if (css == DfaCache.DEAD) {
+                return -1;
             }
-        }
-        css = miss(css, co, cp);
-        if (css == null) {
-            return -1;
-        }
 
-        css.setLastSeen(cp);
+            seen(css, cp);
+        }
 
-        StateSet ss;
+        int ss;
+        int[] trans = table.trans;
+        long[] posts = table.post;
+        long[] noprogs = table.noprogress;
     /* main loop */
         while (cp < realstop) {
-            char theChar = runtime.data.charAt(cp);
-            int increment = 1;
-            if (Character.isHighSurrogate(theChar)) {
-                int codepoint = Character.toCodePoint(theChar, runtime.data.charAt(cp + 1));
-                co = cm.getcolor(codepoint);
-                increment = 2;
-            } else {
-                co = cm.getcolor(theChar);
-            }
-            ss = css.outs[co];
-            if (ss == null) {
-                ss = miss(css, co, cp + increment);
-                if (ss == null) {
+            co = runtime.colorAt(cp);
+            int next = runtime.next(cp);
+            ss = DfaCache.next(trans, css * ncolors + co);
+            if (ss <= DfaCache.UNKNOWN) {
+                ss = miss(css, co, next);
+                if (ss == DfaCache.DEAD) {
                     break;  /* NOTE BREAK OUT */
                 }
+                trans = table.trans;
+                posts = table.post;
+                noprogs = table.noprogress;
             }
 
-            cp = cp + increment;
-            ss.setLastSeen(cp);
+            cp = next;
+            if (DfaCache.bit(posts, ss)) {
+                lastpost = cp;
+            }
+            if (DfaCache.bit(noprogs, ss)) {
+                lastnopr = cp;
+            }
             css = ss;
         }
+        save(true, start, start, cp, css);
 
     /* shutdown */
-        if (cp == runtime.dataLength && stop == runtime.dataLength) {
+        if (cp == runtime.dataEnd && stop == runtime.dataEnd) {
             if (hitstop != null) {
                 hitstop[0] = true;
             }
+            runtime.hitEnd = true;
             co = cnfa.eos[0 != (runtime.eflags & Flags.REG_NOTEOL) ? 0 : 1];
             ss = miss(css, co, cp);
         /* special case:  match ended at eol? */
-            if (ss != null && ss.poststate) {
+            if (poststate(ss)) {
                 return cp;
-            } else if (ss != null) {
-                ss.setLastSeen(cp); /* to be tidy */
             }
         }
 
     /* find last match, if any */
-        post = -1;
-        for (StateSet thisSS : stateSets.values()) { //.object2ObjectEntrySet()) {
-            if (thisSS.poststate && post != thisSS.getLastSeen()
-                    && (post == -1 || post < thisSS.getLastSeen())) {
-                post = thisSS.getLastSeen();
-            }
-        }
+        post = lastpost;
         if (post != -1) {       /* found one */
             /* Post points after the codepoint after the last one in the match (!) */
-            /* So, if that is an SMP codepoint, we need to back up 2 to get to the beginning of it,
+            /* So, we need to back up to the beginning of it, whatever its size,
              * and thus be just after the last character of the match. */
-            char postChar = runtime.data.charAt(post - 1);
-            if (Character.isLowSurrogate(postChar)) {
-                return post - 2;
-            } else {
-                return post - 1;
-            }
+            return runtime.previous(post);
         }
         return -1;
     }
 
 
+    /**
+     * Note where a run got to, if the runtime carries runs over.
+     */
+    private void save(boolean longest, int start, int min, int cp, int css) {
+        if (runtime.carry && !cnfa.hasLacons && cp > start) {
+            savedLongest = longest;
+            savedStart = start;
+            savedMin = min;
+            savedAt = cp;
+            savedStates = table.states[css];
+            savedPost = lastpost;
+            savedNopr = lastnopr;
+        }
+    }
+
+    /**
+     * Can a run pick up where the last one left off? It has to be the same sort of run, from the same start,
+     * and mustn't stop before the last one got to. A shortest run can't stop at a post state earlier than the last one
+     * could. If the last run of the search machine found no post state at all, a run of it from anywhere up to its
+     * last no-progress point would be in the same position, as far as any match that starts from there is concerned,
+     * since the loop on its pre state lets a match start at any point along the way; so, for a search, the start
+     * can move up that far. Any other machine's run is only good for the start it had.
+     */
+    private boolean resumable(boolean longest, int start, int min, int realstop) {
+        if (!runtime.carry || savedStart == -1 || savedLongest != longest || savedAt > realstop) {
+            return false;
+        }
+        if (savedStart == start) {
+            return min >= savedMin;
+        }
+        return cnfa == runtime.g.search && !longest && savedPost == -1 && savedStart < start && start <= savedNopr
+                && min >= start;
+    }
+
+    /**
+     * Pick up where the last run left off; see {@link #resumable}.
+     * @return the state set at {@link #savedAt}
+     */
+    private int resume() {
+        table = cache.table();
+        lastpost = savedPost;
+        lastnopr = savedNopr;
+        return enter(savedStates, false);
+    }
+
+    /**
+     * The runtime has dropped 'cut' chars from the start of the data.
+     */
+    void shift(int cut) {
+        if (savedStart < cut) {
+            savedStart = -1;
+            savedStates = null;
+        } else {
+            savedStart -= cut;
+            savedMin -= cut;
+            savedAt -= cut;
+            savedPost = savedPost == -1 ? -1 : savedPost - cut;
+            savedNopr -= cut;
+        }
+    }
+
+    /**
+     * reach - how far the matches go that start anywhere from 'start' through 'last'.
+     * This runs 'anywhere', which is this machine with a loop on pre (see {@link Cnfa#unanchored}), up to 'last',
+     * so that a match can begin at each point along the way; then this machine carries on from the states
+     * that got there, less pre, until they die out or the data ends. So it takes one pass, however many
+     * starting points there are. The state sets that the second part starts from aren't ones that a run from
+     * pre meets, so this Dfa mustn't be on a complete cache (see {@link Cnfa#reachCache}).
+     *
+     * @param anywhere the Dfa of {@link Cnfa#unanchored} of this machine.
+     * @return the end of the latest-ending such match, or -1 if there is none
+     */
+    int reach(Dfa anywhere, int start, int last) {
+        Runtime runtime = this.runtime;
+        int cp = start;
+        short co;
+        int ss;
+        int post = -1;
+
+    /* startup */
+        int css = anywhere.initialize(start);
+        if (cp == runtime.dataStart) {
+            co = cnfa.bos[0 != (runtime.eflags & Flags.REG_NOTBOL) ? 0 : 1];
+        } else {
+            co = runtime.colorAt(runtime.previous(cp));
+        }
+        css = anywhere.miss(css, co, cp);
+
+    /* every place up to 'last' can start a match */
+        int[] trans = anywhere.table.trans;
+        long[] posts = anywhere.table.post;
+        while (cp < last && css != DfaCache.DEAD) {
+            co = runtime.colorAt(cp);
+            int next = runtime.next(cp);
+            ss = DfaCache.next(trans, css * anywhere.ncolors + co);
+            if (ss <= DfaCache.UNKNOWN) {
+                ss = anywhere.miss(css, co, next);
+                trans = anywhere.table.trans;
+                posts = anywhere.table.post;
+            }
+            cp = next;
+            if (ss != DfaCache.DEAD && DfaCache.bit(posts, ss)) {
+                post = cp;
+            }
+            css = ss;
+        }
+        if (css == DfaCache.DEAD) {
+            return post == -1 ? -1 : runtime.previous(post);
+        }
+
+    /* and none after it */
+        initialize(cp);
+        css = enter(anywhere.table.states[css], true);
+
+    /* main loop */
+        trans = table.trans;
+        posts = table.post;
+        while (cp < runtime.dataEnd && css != DfaCache.DEAD) {
+            co = runtime.colorAt(cp);
+            int next = runtime.next(cp);
+            ss = DfaCache.next(trans, css * ncolors + co);
+            if (ss <= DfaCache.UNKNOWN) {
+                ss = miss(css, co, next);
+                if (ss == DfaCache.DEAD) {
+                    break;  /* NOTE BREAK OUT */
+                }
+                trans = table.trans;
+                posts = table.post;
+            }
+            cp = next;
+            if (DfaCache.bit(posts, ss)) {
+                post = cp;
+            }
+            css = ss;
+        }
+
+    /* shutdown */
+        if (cp == runtime.dataEnd && css != DfaCache.DEAD) {
+            runtime.hitEnd = true;
+            co = cnfa.eos[0 != (runtime.eflags & Flags.REG_NOTEOL) ? 0 : 1];
+            if (poststate(miss(css, co, cp))) {
+                return cp;
+            }
+        }
+        return post == -1 ? -1 : runtime.previous(post);
+    }
+
+    /**
+     * Find or add the state set for some states of this machine.
+     *
+     * @param states the states.
+     * @param withoutPre leave pre out.
+     * @return the id of the state set, or {@link DfaCache#DEAD}.
+     */
+    private int enter(long[] states, boolean withoutPre) {
+        long[] work = this.work;
+        System.arraycopy(states, 0, work, 0, work.length);
+        if (withoutPre) {
+            work[cnfa.pre >>> 6] &= ~(1L << cnfa.pre);
+        }
+        boolean gotstate = false;
+        boolean noprogress = true;
+        for (int wx = 0; wx < work.length; wx++) {
+            for (long bits = work[wx]; bits != 0; bits &= bits - 1) {
+                int i = (wx << 6) + Long.numberOfTrailingZeros(bits);
+                gotstate = true;
+                if (0 == Cnfa.carcColor(cnfa.arcs[cnfa.states[i]])) {
+                    noprogress = false;
+                }
+            }
+        }
+        boolean ispost = DfaCache.bit(work, cnfa.post);
+        table = cache.transition(table, DfaCache.INITIAL, 0, gotstate ? work : null, ispost, noprogress, false, target);
+        return target[0];
+    }
+
     /**
      * shortest - shortest-preferred matching engine
      *
@@ -295,97 +490,102 @@ class Dfa {
      * @return endpoint or -1
      */
     int shortest(int start, int min, int max, int[] coldp, boolean[] hitstop) {
+        Runtime runtime = this.runtime;
         int cp;
-        int realmin = min == runtime.dataLength ? min : min + 1;
-        int realmax = max == runtime.dataLength ? max : max + 1;
+        int realmin = min == runtime.dataEnd ? min : min + 1;
+        int realmax = max == runtime.dataEnd ? max : max + 1;
         short co;
-        StateSet ss;
-        StateSet css;
+        int ss;
+        int css;
 
-    /* initialize */
-        css = initialize(start);
-        cp = start;
         if (hitstop != null) {
             hitstop[0] = false;
         }
-
-    /* startup */
-        if (cp == 0) {
-            /* If the NOTBOL flag is true, we take color as bos[0], else 1. bos[0] is really BOS, while [1] is supposed to be BOL. So, I guess, if it's NOTBOL, it's BOS. */
-            /* The combination of NOTBOL and lookingAt is not defined. */
-            co = cnfa.bos[0 != (runtime.eflags & Flags.REG_NOTBOL) ? 0 : 1];
+        boolean stopped = false; // at a post state, by picking up from where the last run stopped
+        if (resumable(false, start, min, realmax)) {
+            css = resume();
+            cp = savedAt;
+            stopped = cp >= realmin && poststate(css);
         } else {
-            /* Not at bos at all, set color based on prior character. */
-            char theChar = runtime.data.charAt(cp - 1);
-            if (Character.isLowSurrogate(theChar)) {
-                int codepoint = Character.toCodePoint(runtime.data.charAt(cp - 2), theChar);
-                co = cm.getcolor(codepoint);
+        /* initialize */
+            css = initialize(start);
+            cp = start;
+
+        /* startup */
+            if (cp == runtime.dataStart) {
+                /* If the NOTBOL flag is true, we take color as bos[0], else 1. bos[0] is really BOS, while [1] is supposed to be BOL. So, I guess, if it's NOTBOL, it's BOS. */
+                /* The combination of NOTBOL and lookingAt is not defined. */
+                co = cnfa.bos[0 != (runtime.eflags & Flags.REG_NOTBOL) ? 0 : 1];
             } else {
-                co = cm.getcolor(theChar);
+                /* Not at bos at all, set color based on prior character. */
+                co = runtime.colorAt(runtime.previous(cp));
             }
-        }
 
-        css = miss(css, co, cp);
-        if (css == null) {
-            return -1;
-        }
+            css = miss(css, co, cp);
+            if (css == DfaCache.DEAD) {
+                return -1;
+            }
 
-        css.setLastSeen(cp);
+            seen(css, cp);
+        }
         ss = css;
+        int[] trans = table.trans;
+        long[] posts = table.post;
+        long[] noprogs = table.noprogress;
 
     /* main loop */
-        while (cp < realmax) {
-            int increment = 1;
-            char theChar = runtime.data.charAt(cp);
-            if (Character.isHighSurrogate(theChar)) {
-                int codepoint = Character.toCodePoint(theChar,  runtime.data.charAt(cp + 1));
-                co = cm.getcolor(codepoint);
-                increment = 2;
-            } else {
-                co = cm.getcolor(theChar);
-            }
-            ss = css.outs[co];
-            if (ss == null) {
-                ss = miss(css, co, cp + increment);
-                if (ss == null) {
+        while (!stopped && cp < realmax) {
+            co = runtime.colorAt(cp);
+            int next = runtime.next(cp);
+            ss = DfaCache.next(trans, css * ncolors + co);
+            if (ss <= DfaCache.UNKNOWN) {
+                ss = miss(css, co, next);
+                if (ss == DfaCache.DEAD) {
                     break;  /* NOTE BREAK OUT */
                 }
+                trans = table.trans;
+                posts = table.post;
+                noprogs = table.noprogress;
             }
 
-            cp = cp + increment;
-            ss.setLastSeen(cp);
+            cp = next;
+            if (DfaCache.bit(posts, ss)) {
+                lastpost = cp;
+            }
+            if (DfaCache.bit(noprogs, ss)) {
+                lastnopr = cp;
+            }
             css = ss;
-            if (ss.poststate && cp >= realmin) {
+            if (cp >= realmin && DfaCache.bit(posts, ss)) {
                 break;      /* NOTE BREAK OUT */
             }
         }
 
-        if (ss == null) {
+        if (ss == DfaCache.DEAD) {
             return -1;
         }
+        save(false, start, min, cp, css);
 
         int matchStart = lastcold();
         if (coldp != null) {    /* report last no-progress state set, if any */
             coldp[0] = matchStart;
         }
 
-        if (ss.poststate && cp > min) {
+        if (poststate(ss) && cp > min) {
             assert cp >= realmin;
-            cp--;
-            if (Character.isLowSurrogate(runtime.data.charAt(cp))) {
-                cp--;
-            }
+            cp = runtime.previous(cp);
 
-        } else if (cp == runtime.dataLength && max == runtime.dataLength) {
+        } else if (cp == runtime.dataEnd && max == runtime.dataEnd) {
+            runtime.hitEnd = true;
             co = cnfa.eos[0 != (runtime.eflags & Flags.REG_NOTEOL) ? 0 : 1];
             ss = miss(css, co, cp);
         /* match might have ended at eol */
-            if ((ss == null || !ss.poststate) && hitstop != null) {
+            if (!poststate(ss) && hitstop != null) {
                 hitstop[0] = true;
             }
         }
 
-        if (ss == null || !ss.poststate) {
+        if (!poststate(ss)) {
             return -1;
         }
 
@@ -394,19 +594,81 @@ class Dfa {
 
 
     /**
-     * lastcold - determine last point at which no progress had been made
+     * leftmost - longest-preferred matching, backwards, with a reversed machine (see {@link Cnfa#reverse}).
+     * The reversed machine takes the codepoint after the match as its context, and
+     * reaches post on the codepoint before the match, or at BOS.
      *
-     * @return offset or -1
+     * @param end  where the match should end
+     * @param stop match must start at or after here
+     * @return the earliest start of a match that ends at 'end', or -1
      */
-    int lastcold() {
-        int nopr = 0;
+    int leftmost(int end, int stop) {
+        Runtime runtime = this.runtime;
+        int cp;
+        int realstop = stop == runtime.dataStart ? stop : stop - 1;
+        short co;
+        int css;
+        int ss;
+        int start = -1;
+
+    /* initialize */
+        css = initialize(end);
+        cp = end;
 
-        for (StateSet ss : stateSets.values()) {
-            if (ss.noprogress && nopr < ss.getLastSeen()) {
-                nopr = ss.getLastSeen();
+    /* startup; the reversed machine's BOS colors are really EOS. */
+        if (cp == runtime.dataEnd) {
+            runtime.hitEnd = true;
+            co = cnfa.bos[0 != (runtime.eflags & Flags.REG_NOTEOL) ? 0 : 1];
+        } else {
+            co = runtime.colorAt(cp);
+        }
+        css = miss(css, co, cp);
+        if (css == DfaCache.DEAD) {
+            return -1;
+        }
+
+        int[] trans = table.trans;
+        long[] posts = table.post;
+    /* main loop */
+        while (cp > realstop) {
+            int previous = runtime.previous(cp);
+            co = runtime.colorAt(previous);
+            ss = DfaCache.next(trans, css * ncolors + co);
+            if (ss <= DfaCache.UNKNOWN) {
+                ss = miss(css, co, previous);
+                if (ss == DfaCache.DEAD) {
+                    return start;  /* NOTE RETURN */
+                }
+                trans = table.trans;
+                posts = table.post;
+            }
+
+            /* as with longest, post points at the codepoint before the start of the match. */
+            if (DfaCache.bit(posts, ss)) {
+                start = cp;
+            }
+            cp = previous;
+            css = ss;
+        }
+
+    /* shutdown */
+        if (cp == runtime.dataStart && stop == runtime.dataStart) {
+            co = cnfa.eos[0 != (runtime.eflags & Flags.REG_NOTBOL) ? 0 : 1];
+            ss = miss(css, co, cp);
+            if (poststate(ss)) {
+                start = cp;
             }
         }
-        return nopr;
+        return start;
+    }
+
+    /**
+     * lastcold - determine last point at which no progress had been made
+     *
+     * @return offset or -1
+     */
+    int lastcold() {
+        return lastnopr;
     }
 }
 
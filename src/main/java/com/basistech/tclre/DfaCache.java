@@ -0,0 +1,428 @@
+/*
+* Copyright 2014 Basis Technology Corp.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package com.basistech.tclre;
+
+import com.google.common.collect.Maps;
+
+import java.io.Serializable;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.IntBuffer;
+import java.util.Arrays;
+import java.util.Map;
+
+/**
+ * The state set cache for one compacted NFA. In C, each call to regexec
+ * built its own cache; here, the cache hangs off the {@link Cnfa} and
+ * is shared by every {@link Dfa} that runs that machine, in any matcher,
+ * in any thread, so that the transitions computed by {@link Dfa#miss} survive
+ * from one match to the next.
+ * <p>
+ * Each state set that a Dfa discovers gets a dense integer id in a {@link Table}.
+ * The transitions live in one flat int array, indexed by id * ncolors + color,
+ * with the poststate and noprogress flags in parallel bit sets, and the NFA states
+ * of each id in a packed bit set. A state set is a pure function of its set of NFA
+ * states, so it does not matter which match created it. Anything that is particular to
+ * a single match (e.g. where a state set was last seen) lives in the {@link Dfa}.
+ * </p>
+ * <p>
+ * Nothing here takes a lock on the matching path. The {@link Dfa} reads transitions
+ * with acquire loads, and {@link #transition} stores them with release stores, after
+ * everything else about the target id is filled in; so any id that a Dfa can see, it can
+ * see all of. A stale zero just costs a trip through {@link Dfa#miss}. New ids are assigned
+ * under the lock of the cache, which is only taken on a miss.
+ * </p>
+ * <p>
+ * The cache has a memory cap, set with the system property
+ * {@value #MAX_BYTES_PROPERTY}. The table grows as needed up to the cap, keeping its ids.
+ * When a full table can grow no more, the eviction policy is to flush: the entire table
+ * is replaced by an empty one, with a new epoch. A running {@link Dfa} carries on with the
+ * table it has, and moves to the new one at its next miss.
+ * </p>
+ * <p>
+ * A cache can also start out with a complete table, built ahead of time by {@link #determinize}
+ * and {@link #minimize}; then every transition is already known, and nothing is ever added or flushed.
+ * </p>
+ */
+class DfaCache {
+    static final String MAX_BYTES_PROPERTY = "tclre.dfaCacheBytes";
+    static final String EAGER_STATES_PROPERTY = "tclre.eagerDfaStates";
+    /* the most state sets that {@link #determinize} will build for one machine. */
+    static final int EAGER_STATES = Integer.getInteger(EAGER_STATES_PROPERTY, 4096);
+    /* cap on the estimated memory used by the state sets of one machine. */
+    static final long MAX_BYTES = Long.getLong(MAX_BYTES_PROPERTY, 1024 * 1024);
+    static final int UNKNOWN = 0; // transition not computed yet; also, no id is 0.
+    static final int DEAD = -1; // no states at all on this transition.
+    static final int INITIAL = 1; // the initial state set (just the pre state), in every table.
+    private static final int INITIAL_CAPACITY = 16;
+    private static final VarHandle TRANS = MethodHandles.arrayElementVarHandle(int[].class);
+
+    private final int ncolors;
+    private final long[] initial;
+    private final long stateSetBytes;
+    private final int maxCapacity;
+    private volatile Table table;
+    private boolean complete; // started out with a complete table, so it never grows.
+
+    DfaCache(Cnfa cnfa) {
+        this(words(cnfa.states.length), cnfa.ncolors, initialStates(cnfa), MAX_BYTES);
+    }
+
+    /**
+     * Make a cache for a machine that isn't just one {@link Cnfa}.
+     *
+     * @param nwords the length of the bit sets of states
+     * @param ncolors the number of colors
+     * @param initial the states of the initial state set
+     * @param maxBytes the memory cap
+     */
+    DfaCache(int nwords, int ncolors, long[] initial, long maxBytes) {
+        this.ncolors = ncolors;
+        this.initial = initial;
+        stateSetBytes = stateSetBytes(nwords, ncolors);
+        maxCapacity = maxCapacity(ncolors, stateSetBytes, maxBytes);
+        table = newTable(0);
+    }
+
+    /* a row of transitions, the states, the hash, two index slots, and the flags. */
+    private static long stateSetBytes(int nwords, int ncolors) {
+        return 4L * ncolors + (16 + 8L * nwords) + 8 + 4 + 8 + 1;
+    }
+
+    private static int maxCapacity(int ncolors, long stateSetBytes, long maxBytes) {
+        return (int) Math.max(INITIAL_CAPACITY,
+                Math.min(Integer.MAX_VALUE / 4 / Math.max(ncolors, 1), maxBytes / stateSetBytes));
+    }
+
+    /**
+     * @return the most memory that a cache of a machine can come to use, if it doesn't start out
+     * complete: the cap, or less for a machine with too few states to have that many state sets.
+     */
+    static long maxBytes(Cnfa cnfa) {
+        int nstates = cnfa.states.length;
+        long stateSetBytes = stateSetBytes(words(nstates), cnfa.ncolors);
+        int maxCapacity = maxCapacity(cnfa.ncolors, stateSetBytes, MAX_BYTES);
+        // every state set is a distinct subset of the states; id 0 is never used.
+        long sets = nstates < 62 ? (1L << nstates) + 1 : Long.MAX_VALUE;
+        int capacity = INITIAL_CAPACITY;
+        while (capacity < sets && capacity < maxCapacity) {
+            capacity = (int) Math.min(maxCapacity, capacity * 2L);
+        }
+        return capacity * stateSetBytes;
+    }
+
+    private static long[] initialStates(Cnfa cnfa) {
+        long[] states = new long[words(cnfa.states.length)];
+        states[cnfa.pre >>> 6] |= 1L << cnfa.pre;
+        return states;
+    }
+
+    /**
+     * Make a cache that starts out with a table from {@link #determinize}.
+     */
+    DfaCache(Cnfa cnfa, Table complete) {
+        this(cnfa);
+        table = complete;
+        this.complete = true;
+    }
+
+    /**
+     * Build the complete transition table for a machine, following every color from every
+     * state set reachable from the initial one. This can't be done for a machine with
+     * lookahead constraints, since the outcome of those depends on the data.
+     *
+     * @param budget the most state sets to build.
+     * @return the table, or null if the machine needs more than 'budget' state sets.
+     */
+    static Table determinize(Cnfa cnfa, int budget) {
+        assert !cnfa.hasLacons;
+        int ncolors = cnfa.ncolors;
+        Table t = new Table(0, INITIAL_CAPACITY, ncolors);
+        long[] states = initialStates(cnfa);
+        t.add(states, Arrays.hashCode(states), false, true);
+        long[] work = new long[states.length];
+        for (int id = INITIAL; id < t.count; id++) {
+            for (short co = 0; co < ncolors; co++) {
+                Arrays.fill(work, 0L);
+                int stepped = Dfa.step(cnfa, t.states[id], co, work);
+                int target = DEAD;
+                if (0 != (stepped & Dfa.STEP_GOT)) {
+                    int hash = Arrays.hashCode(work);
+                    target = t.find(work, hash);
+                    if (target == UNKNOWN) {
+                        if (t.count > budget) {
+                            return null;
+                        }
+                        if (t.count == t.capacity) {
+                            t = t.resize(Math.min(budget + 1, t.capacity * 2));
+                        }
+                        target = t.add(work.clone(), hash, 0 != (stepped & Dfa.STEP_POST),
+                                0 == (stepped & Dfa.STEP_PROGRESS));
+                    }
+                }
+                t.trans[id * ncolors + co] = target;
+            }
+        }
+        return t.resize(t.count);
+    }
+
+    /**
+     * Merge equivalent state sets of a complete table, by Moore's partition refinement.
+     * Two state sets are equivalent if they agree on poststate and noprogress (which the Dfa
+     * observes at every step), and, on every color, go to equivalent state sets.
+     * Subset construction leaves plenty of these; e.g., the tails of the alternatives of
+     * abc|xbc are different NFA states but behave the same.
+     * <p>
+     * The result keeps the NFA states of one member of each class, only for the
+     * sake of {@code toString}-style debugging; since the table is complete,
+     * they are never consulted.
+     * </p>
+     *
+     * @return the minimal table, with the initial state set still at {@link #INITIAL}.
+     */
+    static Table minimize(Table t) {
+        int ncolors = t.ncolors;
+        // start by splitting on the flags.
+        int[] classes = new int[t.count];
+        int nclasses = -1;
+        for (int id = INITIAL; id < t.count; id++) {
+            classes[id] = (bit(t.post, id) ? 2 : 0) | (bit(t.noprogress, id) ? 1 : 0);
+        }
+        while (true) {
+            // the signature of a state set: its current class, then those of its successors.
+            Map<IntBuffer, Integer> numbering = Maps.newHashMap();
+            int[] refined = new int[t.count];
+            for (int id = INITIAL; id < t.count; id++) {
+                int[] signature = new int[ncolors + 1];
+                signature[0] = classes[id];
+                for (int co = 0; co < ncolors; co++) {
+                    int target = t.trans[id * ncolors + co];
+                    signature[co + 1] = target == DEAD ? DEAD : classes[target];
+                }
+                IntBuffer key = IntBuffer.wrap(signature);
+                Integer number = numbering.get(key);
+                if (number == null) {
+                    number = numbering.size();
+                    numbering.put(key, number);
+                }
+                refined[id] = number;
+            }
+            boolean stable = numbering.size() == nclasses;
+            classes = refined;
+            nclasses = numbering.size();
+            if (stable) {
+                break;
+            }
+        }
+        if (nclasses == t.count - 1) {
+            return t;
+        }
+
+        // renumber the classes in order of first appearance, which puts the initial one first.
+        int[] representative = new int[nclasses];
+        int[] ids = new int[nclasses];
+        Arrays.fill(ids, UNKNOWN);
+        Table minimal = new Table(0, nclasses + 1, ncolors);
+        for (int id = INITIAL; id < t.count; id++) {
+            int c = classes[id];
+            if (ids[c] == UNKNOWN) {
+                representative[c] = id;
+                ids[c] = minimal.add(t.states[id], t.hashes[id], bit(t.post, id), bit(t.noprogress, id));
+            }
+        }
+        for (int c = 0; c < nclasses; c++) {
+            int from = representative[c];
+            for (int co = 0; co < ncolors; co++) {
+                int target = t.trans[from * ncolors + co];
+                minimal.trans[ids[c] * ncolors + co] = target == DEAD ? DEAD : ids[classes[target]];
+            }
+        }
+        return minimal;
+    }
+
+    /**
+     * @return the number of longs needed for a bit set of NFA states.
+     */
+    static int words(int nstates) {
+        return (nstates + 63) >>> 6;
+    }
+
+    static boolean bit(long[] bits, int id) {
+        return (bits[id >>> 6] & (1L << id)) != 0;
+    }
+
+    /**
+     * @return the transition at 'index' of 'trans': an id, {@link #UNKNOWN}, or {@link #DEAD}.
+     */
+    static int next(int[] trans, int index) {
+        return (int) TRANS.getAcquire(trans, index);
+    }
+
+    /**
+     * @return the current table.
+     */
+    Table table() {
+        return table;
+    }
+
+    /**
+     * @return the number of state sets currently cached.
+     */
+    int size() {
+        return table.count - 1;
+    }
+
+    /**
+     * @return true if the cache started out with a complete table.
+     */
+    boolean complete() {
+        return complete;
+    }
+
+    /**
+     * @return the estimated memory used by the current table.
+     */
+    long bytes() {
+        return table.capacity * stateSetBytes;
+    }
+
+    /**
+     * Record the result of a miss: find or assign the id of the state set for 'states',
+     * and, if 'record' is set, store it as the transition from 'from' on 'co'.
+     * The caller has to move to the returned table. After a flush, 'from' means nothing
+     * in that table, so the transition isn't recorded.
+     *
+     * @param current the table that 'from' belongs to
+     * @param states the NFA states, or null if there are none; the caller keeps ownership.
+     * @param id store the id in the returned table here, or {@link #DEAD}.
+     * @return the current table.
+     */
+    synchronized Table transition(Table current, int from, int co, long[] states, boolean poststate,
+                                  boolean noprogress, boolean record, int[] id) {
+        Table t = table;
+        boolean valid = record && t.epoch == current.epoch;
+        int target = DEAD;
+        if (states != null) {
+            int hash = Arrays.hashCode(states);
+            target = t.find(states, hash);
+            if (target == UNKNOWN) {
+                assert !complete : "a complete table never grows";
+                if (t.count == t.capacity) {
+                    if (t.capacity < maxCapacity) {
+                        t = t.resize(Math.min(maxCapacity, t.capacity * 2));
+                    } else {
+                        t = newTable(t.epoch + 1);
+                        valid = false;
+                    }
+                    table = t;
+                }
+                target = t.add(states.clone(), hash, poststate, noprogress);
+            }
+        }
+        if (valid) {
+            TRANS.setRelease(t.trans, from * ncolors + co, target);
+        }
+        id[0] = target;
+        return t;
+    }
+
+    private Table newTable(int epoch) {
+        Table t = new Table(epoch, INITIAL_CAPACITY, ncolors);
+        t.add(initial.clone(), Arrays.hashCode(initial), false, true);
+        return t;
+    }
+
+    /**
+     * One generation of the cache. All the arrays are sized by the capacity in ids,
+     * and only the cache, under its lock, changes them, and only by adding ids.
+     */
+    static final class Table implements Serializable {
+        static final long serialVersionUID = 1L;
+        final int epoch;
+        final int capacity;
+        final int ncolors;
+        final int[] trans;
+        final long[] post;
+        final long[] noprogress;
+        final long[][] states;
+        final int[] hashes;
+        final int[] index; // open addressing, linear probing; 0 is empty.
+        int count; // next id to assign.
+
+        Table(int epoch, int capacity, int ncolors) {
+            this.epoch = epoch;
+            this.capacity = capacity;
+            this.ncolors = ncolors;
+            trans = new int[capacity * ncolors];
+            post = new long[words(capacity)];
+            noprogress = new long[words(capacity)];
+            states = new long[capacity][];
+            hashes = new int[capacity];
+            index = new int[Integer.highestOneBit(capacity - 1) * 4];
+            count = INITIAL;
+        }
+
+        int find(long[] words, int hash) {
+            int mask = index.length - 1;
+            for (int x = spread(hash) & mask;; x = (x + 1) & mask) {
+                int id = index[x];
+                if (id == UNKNOWN) {
+                    return UNKNOWN;
+                }
+                if (hashes[id] == hash && Arrays.equals(states[id], words)) {
+                    return id;
+                }
+            }
+        }
+
+        int add(long[] words, int hash, boolean poststate, boolean noprogressState) {
+            int id = count;
+            states[id] = words;
+            hashes[id] = hash;
+            if (poststate) {
+                post[id >>> 6] |= 1L << id;
+            }
+            if (noprogressState) {
+                noprogress[id >>> 6] |= 1L << id;
+            }
+            int mask = index.length - 1;
+            int x = spread(hash) & mask;
+            while (index[x] != UNKNOWN) {
+                x = (x + 1) & mask;
+            }
+            index[x] = id;
+            count++;
+            return id;
+        }
+
+        /**
+         * @return a copy of this table with room for 'newCapacity' ids; the ids stay the same.
+         */
+        Table resize(int newCapacity) {
+            Table bigger = new Table(epoch, newCapacity, ncolors);
+            for (int id = INITIAL; id < count; id++) {
+                bigger.add(states[id], hashes[id], bit(post, id), bit(noprogress, id));
+            }
+            System.arraycopy(trans, 0, bigger.trans, 0, count * ncolors);
+            return bigger;
+        }
+
+        private static int spread(int h) {
+            return h ^ (h >>> 16);
+        }
+    }
+}
@@ -39,6 +39,7 @@ final class Flags {
 //    static final int REG_FAKE = 010000; /* none of your business :-) */
     static final int REG_PROGRESS = 020000; /* none of your business :-) */
     static final int REG_NOCAPT = 040000; /* disable capturing parens */
+    static final int REG_EAGER = 0100000; /* build the DFAs at compile time */
     // these are internal. This may need sorting.
     static final int REG_UBACKREF = 000001;
     static final int REG_ULOOKAHEAD = 000002;
@@ -56,6 +57,7 @@ final class Flags {
 
     static final int REG_NOTBOL =  1;    /* BOS is not BOL */
     static final int REG_NOTEOL =  2;    /* EOS is not EOL */
+    static final int REG_TEST = 4;      /* only say whether there is a match */
 
     private Flags() {
         //
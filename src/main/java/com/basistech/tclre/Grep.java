@@ -15,24 +15,37 @@
 */
 package com.basistech.tclre;
 
-import com.google.common.base.Charsets;
-import com.google.common.io.CharSource;
-import com.google.common.io.Files;
 import org.kohsuke.args4j.Argument;
 import org.kohsuke.args4j.CmdLineException;
 import org.kohsuke.args4j.CmdLineParser;
 
-import java.io.BufferedReader;
+import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
 import java.util.EnumSet;
 import java.util.List;
 
 /**
  * Grep command line to exercise the regex package.
+ * <p>
+ * This is also the way to drive the engine over big files: each file is mapped, and matched
+ * as UTF-8 in place, a window at a time, with newline-sensitive matching so that one search
+ * runs over many lines. Lines are only looked at where there's a match; nothing is decoded,
+ * and the lines that match are copied straight from the mapped file to the output.
+ * </p>
  */
 @SuppressWarnings("PMD")
 public final class Grep {
+    /* how much of a file to map at once; windows end at the end of a line, and grow for a long one. */
+    static final int MAX_WINDOW = 1 << 30;
+    private static final byte NEWLINE = '\n';
+
     @Argument(required = true)
     String pattern;
     @Argument(index = 1)
@@ -65,27 +78,124 @@ public final class Grep {
 
     }
 
+    /**
+     * Compile a pattern the way grep wants it: newline-sensitive, so that matches don't run
+     * from one line to the next, and ^ and $ go with lines.
+     */
+    static RePattern compile(String pattern) throws RegexException {
+        return Compiler.compile(pattern, EnumSet.of(PatternFlags.EXTENDED, PatternFlags.ADVANCED,
+                PatternFlags.NLSTOP, PatternFlags.NLANCH));
+    }
+
     private void go() throws IOException, RegexException {
-        re = Compiler.compile(pattern, EnumSet.of(PatternFlags.EXTENDED, PatternFlags.ADVANCED));
+        re = compile(pattern);
+        OutputStream out = new BufferedOutputStream(System.out, 64 * 1024);
         for (File input : inputs) {
-            processFile(input);
+            grep(re, input, inputs.size() > 1 ? input.getPath() : null, MAX_WINDOW, out);
         }
-
+        out.flush();
     }
 
-    private void processFile(File input) throws IOException, RegexException {
-        CharSource inputCharSource = Files.asCharSource(input, Charsets.UTF_8);
-        processReader(inputCharSource.openBufferedStream());
-    }
-
-    private void processReader(BufferedReader bufferedReader) throws IOException, RegexException {
-        String line;
-        while ((line = bufferedReader.readLine()) != null) {
-            processOneLine(line);
+    /**
+     * Print the lines of a UTF-8 file that have a match, with their line numbers.
+     * @param maxWindow how much of the file to map at once.
+     */
+    static void grep(RePattern re, File input, String label, int maxWindow, OutputStream out) throws IOException {
+        try (FileChannel channel = FileChannel.open(input.toPath(), StandardOpenOption.READ)) {
+            long size = channel.size();
+            long position = 0;
+            long lineNumber = 1;
+            while (position < size) {
+                long mapped = Math.min(size - position, maxWindow);
+                MappedByteBuffer window;
+                int end;
+                for (;;) {
+                    window = channel.map(FileChannel.MapMode.READ_ONLY, position, mapped);
+                    end = window.limit();
+                    if (position + end == size) {
+                        break;
+                    }
+                    // stop after the last complete line; a line longer than the window needs a bigger one.
+                    int last = end - 1;
+                    while (last >= 0 && window.get(last) != NEWLINE) {
+                        last--;
+                    }
+                    if (last >= 0) {
+                        end = last + 1;
+                        break;
+                    }
+                    if (mapped == Integer.MAX_VALUE) {
+                        break; // the line is too long to keep in one piece.
+                    }
+                    mapped = Math.min(size - position, Math.min(mapped * 2, Integer.MAX_VALUE));
+                }
+                window.limit(end);
+                lineNumber = grep(re, window, label, lineNumber, out);
+                position += end;
+            }
         }
     }
 
-    private void processOneLine(String line) throws RegexException {
-        // not trying to match yet.
+    /**
+     * Print the lines of some UTF-8 text that have a match, with their line numbers.
+     * @param re the pattern, from {@link #compile}.
+     * @param text the text, from the position to the limit.
+     * @param label the name to put at the start of each line of output, or null for none.
+     * @param lineNumber the line number of the first line.
+     * @param out where the lines go.
+     * @return the line number after the last line of the text.
+     */
+    static long grep(RePattern re, ByteBuffer text, String label, long lineNumber, OutputStream out) throws IOException {
+        ByteBuffer data = text.slice();
+        int length = data.limit();
+        byte[] prefix = label == null ? new byte[0] : (label + ":").getBytes(StandardCharsets.UTF_8);
+        byte[] line = new byte[256];
+        ByteBuffer lines = data.duplicate(); // for copying out lines, without disturbing 'data'
+        ReMatcher matcher = re.matcher(data);
+        int counted = 0; // where lineNumber is the number of the line
+        int from = 0;
+        while (from < length && matcher.find(from)) {
+            int start = matcher.start();
+            for (; counted < start; counted++) {
+                if (data.get(counted) == NEWLINE) {
+                    lineNumber++;
+                }
+            }
+            int lineStart = start;
+            while (lineStart > 0 && data.get(lineStart - 1) != NEWLINE) {
+                lineStart--;
+            }
+            int lineEnd = start;
+            while (lineEnd < length && data.get(lineEnd) != NEWLINE) {
+                lineEnd++;
+            }
+            from = lineEnd + 1;
+            if (matcher.end() > lineEnd) {
+                // something like \s can still match a newline; make sure of the line by itself.
+                matcher.region(lineStart, lineEnd);
+                boolean found = matcher.find();
+                matcher.region(0, length);
+                if (!found) {
+                    continue;
+                }
+            }
+            int size = lineEnd - lineStart;
+            if (line.length < size) {
+                line = new byte[Math.max(size, line.length * 2)];
+            }
+            lines.position(lineStart);
+            lines.get(line, 0, size);
+            out.write(prefix);
+            out.write(Long.toString(lineNumber).getBytes(StandardCharsets.US_ASCII));
+            out.write(':');
+            out.write(line, 0, size);
+            out.write(NEWLINE);
+        }
+        for (; counted < length; counted++) {
+            if (data.get(counted) == NEWLINE) {
+                lineNumber++;
+            }
+        }
+        return lineNumber;
     }
 }
@@ -18,8 +18,12 @@ package com.basistech.tclre;
 
 import com.google.common.collect.Lists;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
 import java.io.Serializable;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Map;
 
 /**
  * The bits and pieces that make up a runnable expression. This is immutable.
@@ -32,35 +36,135 @@ class Guts implements Serializable {
     final int nsub;       /* copy of re_nsub */
     final RuntimeSubexpression tree;
     final Cnfa search;    /* for fast preliminary search */
+    final Cnfa reverse;   /* the main machine, backwards; null if it has lookahead constraints */
     final int ntree;
     final RuntimeColorMap cm;
     final SubstringComparator compare;
+    final String prefix;  /* every match starts with this; may be empty */
+    final boolean[] firstColors; /* every match starts with one of these colors; null if no help */
 
     private List<RuntimeSubexpression> lookaheadConstraintMachines;
+    /* the most steps the machine of each lookahead constraint can take, or -1; see Cnfa.maxSteps(). */
+    final int[] laconSteps;
+    /* complete DFAs built at compile time, for {@link Flags#REG_EAGER}. */
+    private final Map<Cnfa, DfaCache.Table> determinized;
+    /* the same, for the copies made by {@link Cnfa#unanchored}, by the machine they copy; the copies are transient. */
+    private final Map<Cnfa, DfaCache.Table> determinizedUnanchored;
 
-    Guts(int cflags, long info, int nsub, RuntimeSubexpression tree, Cnfa search, int ntree, ColorMap cm, SubstringComparator compare, List<Subre> lacons) {
+    Guts(int cflags, long info, int nsub, RuntimeSubexpression tree, Cnfa search, Cnfa reverse, int ntree, ColorMap cm, SubstringComparator compare, List<Subre> lacons) {
+        // create the sort of color map that we can serialize and share.
+        this(cflags, info, nsub, tree, search, reverse, ntree, new RuntimeColorMap(cm.getMap()), compare, lookaheadConstraintMachines(lacons));
+    }
+
+    /**
+     * Put together the pieces of a pattern, as compiled or as loaded by {@link PatternCodec}.
+     * @param lacons the lookahead constraint machines, by number; null if there are none.
+     */
+    Guts(int cflags, long info, int nsub, RuntimeSubexpression tree, Cnfa search, Cnfa reverse, int ntree, RuntimeColorMap cm, SubstringComparator compare, List<RuntimeSubexpression> lacons) {
         this.cflags = cflags;
         this.info = info;
         this.nsub = nsub;
         this.tree = tree;
         this.search = search;
+        this.reverse = reverse;
         this.ntree = ntree;
-        // create the sort of color map that we can serialize and share.
-        this.cm = new RuntimeColorMap(cm.getMap());
+        this.cm = cm;
         this.compare = compare;
+        this.prefix = tree.machine.literalPrefix(this.cm);
+        this.firstColors = tree.machine.firstColors();
+        lookaheadConstraintMachines = lacons;
         if (lacons != null) {
-            lookaheadConstraintMachines = Lists.newArrayList();
-            for (Subre subre : lacons) {
-                if (subre == null) {
-                    lookaheadConstraintMachines.add(new RuntimeSubexpression());
-                } else {
-                    lookaheadConstraintMachines.add(new RuntimeSubexpression(subre));
-                }
+            laconSteps = new int[lacons.size()];
+            for (int n = 0; n < lacons.size(); n++) {
+                Cnfa machine = lacons.get(n).machine;
+                laconSteps[n] = machine == null ? -1 : machine.maxSteps();
+            }
+        } else {
+            laconSteps = null;
+        }
+        determinized = new IdentityHashMap<Cnfa, DfaCache.Table>();
+        determinizedUnanchored = new IdentityHashMap<Cnfa, DfaCache.Table>();
+        if (0 != (cflags & Flags.REG_EAGER) && 0 == (info & Flags.REG_UBACKREF)) {
+            determinize(search);
+            determinize(this.tree);
+            if (reverse != null) {
+                // Runtime#leftmost runs these, never the reversed machine itself.
+                determinizeUnanchored(tree.machine, false);
+                determinizeUnanchored(reverse, true);
+            }
+        }
+        pin();
+    }
+
+    private static List<RuntimeSubexpression> lookaheadConstraintMachines(List<Subre> lacons) {
+        if (lacons == null) {
+            return null;
+        }
+        List<RuntimeSubexpression> machines = Lists.newArrayList();
+        for (Subre subre : lacons) {
+            if (subre == null) {
+                machines.add(new RuntimeSubexpression());
+            } else {
+                machines.add(new RuntimeSubexpression(subre));
+            }
+        }
+        return machines;
+    }
+
+    private void determinize(RuntimeSubexpression subexpression) {
+        if (subexpression == null) {
+            return;
+        }
+        if (subexpression.machine != null) {
+            determinize(subexpression.machine);
+        }
+        determinize(subexpression.left);
+        determinize(subexpression.right);
+    }
+
+    private void determinize(Cnfa machine) {
+        if (!machine.hasLacons && !determinized.containsKey(machine)) {
+            DfaCache.Table table = DfaCache.determinize(machine, DfaCache.EAGER_STATES);
+            if (table != null) {
+                determinized.put(machine, DfaCache.minimize(table));
             }
         }
     }
 
+    /*
+     * Dfa#reach carries the state sets of the main machine's copy over to the main machine, less pre;
+     * sets that only behave alike while pre is in them would not survive that, so that copy isn't minimized.
+     */
+    private void determinizeUnanchored(Cnfa machine, boolean minimize) {
+        DfaCache.Table table = DfaCache.determinize(machine.unanchored(), DfaCache.EAGER_STATES);
+        if (table != null) {
+            determinizedUnanchored.put(machine, minimize ? DfaCache.minimize(table) : table);
+        }
+    }
+
+    /* the caches are transient, so this is needed again after deserialization. */
+    private void pin() {
+        for (Map.Entry<Cnfa, DfaCache.Table> me : determinized.entrySet()) {
+            me.getKey().pin(me.getValue());
+        }
+        for (Map.Entry<Cnfa, DfaCache.Table> me : determinizedUnanchored.entrySet()) {
+            me.getKey().unanchored().pin(me.getValue());
+        }
+    }
+
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        pin();
+    }
+
     RuntimeSubexpression lookaheadConstraintMachine(int index) {
         return lookaheadConstraintMachines.get(index);
     }
+
+    /**
+     * @return the lookahead constraint machines, by number, or null if there are none.
+     */
+    List<RuntimeSubexpression> lookaheadConstraintMachines() {
+        return lookaheadConstraintMachines;
+    }
 }
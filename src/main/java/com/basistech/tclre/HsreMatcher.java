@@ -18,6 +18,7 @@ package com.basistech.tclre;
 
 import com.google.common.base.MoreObjects;
 
+import java.nio.ByteBuffer;
 import java.util.Collections;
 import java.util.EnumSet;
 
@@ -27,14 +28,15 @@ import java.util.EnumSet;
 final class HsreMatcher implements ReMatcher {
 
     private CharSequence data;
+    private char[] chars; // a copy of the data, which is what gets matched; made at the first match.
+    private char[] buffer; // ours to copy into, kept for the next data.
+    private ByteBuffer bytes; // UTF-8 data, instead of the other two.
     private final EnumSet<ExecFlags> flags;
     private final HsrePattern pattern;
     private final Runtime runtime;
     private int regionStart;
     private int regionEnd;
     private int nextFindOffset;
-    // correction from Runtime.matches to us.
-    private int matchOffset;
 
     HsreMatcher(HsrePattern pattern, CharSequence data, EnumSet<ExecFlags> flags) throws RegexException {
         this.pattern = pattern;
@@ -45,6 +47,28 @@ final class HsreMatcher implements ReMatcher {
         runtime = new Runtime();
     }
 
+    /**
+     * Make a matcher over chars that are already copied from the data, by {@link Runtime#chars}, perhaps
+     * for another matcher; this one doesn't change them.
+     */
+    HsreMatcher(HsrePattern pattern, CharSequence data, char[] chars) {
+        this.pattern = pattern;
+        this.data = data;
+        this.chars = chars;
+        this.flags = EnumSet.noneOf(ExecFlags.class);
+        regionStart = 0;
+        regionEnd = data.length();
+        runtime = new Runtime();
+        runtime.setData(data, chars);
+    }
+
+    HsreMatcher(HsrePattern pattern, ByteBuffer utf8, EnumSet<ExecFlags> flags) throws RegexException {
+        this.pattern = pattern;
+        this.flags = flags;
+        runtime = new Runtime();
+        reset(utf8);
+    }
+
     /**
      * @return the pattern.
      */
@@ -76,12 +100,13 @@ final class HsreMatcher implements ReMatcher {
         }
 
         try {
-            boolean found = runtime.exec(pat, data.subSequence(startOffset, regionEnd), execFlags);
+            // the runtime works in place; the data between the region start and here is context.
+            prepareData();
+            boolean found = runtime.exec(pat, regionStart, startOffset, regionEnd, execFlags);
             if (found) {
-                // note how much to add to the runtime.match offsets.
-                matchOffset = startOffset;
-                // and now end does the necessary correction on the offset value from 'runtime'.
                 nextFindOffset = end();
+            } else {
+                runtime.nmatch = 0;
             }
             return found;
         } catch (RegexException e) {
@@ -89,6 +114,27 @@ final class HsreMatcher implements ReMatcher {
         }
     }
 
+    private void prepareData() {
+        if (bytes == null && chars == null) {
+            buffer = Runtime.chars(data, buffer);
+            chars = buffer;
+            runtime.setData(data, chars);
+        }
+    }
+
+    @Override
+    public boolean test() throws RegexRuntimeException {
+        try {
+            prepareData();
+            boolean found = runtime.test(pattern, regionStart, regionEnd, flags);
+            runtime.nmatch = 0;
+            nextFindOffset = regionStart;
+            return found;
+        } catch (RegexException e) {
+            throw new RegexRuntimeException(e);
+        }
+    }
+
     /**
      * Look for a match; begin the search at the start.
      * @return true for a match.
@@ -104,8 +150,12 @@ final class HsreMatcher implements ReMatcher {
     */
     private void resetState() {
         // if there are any matches sitting in the runtime, eliminate.
-        if (runtime != null && runtime.match != null) {
-            runtime.match.clear();
+        if (runtime != null) {
+            runtime.nmatch = 0;
+            if (runtime.match != null) {
+                runtime.match[0] = -1;
+                runtime.match[1] = -1;
+            }
         }
         nextFindOffset = regionStart;
     }
@@ -121,7 +171,7 @@ final class HsreMatcher implements ReMatcher {
     @Override
     public ReMatcher reset() throws RegexRuntimeException {
         regionStart = 0;
-        regionEnd = data.length();
+        regionEnd = bytes == null ? data.length() : bytes.limit();
         resetState();
         return this;
     }
@@ -129,12 +179,26 @@ final class HsreMatcher implements ReMatcher {
     @Override
     public ReMatcher reset(CharSequence newSequence) throws RegexRuntimeException {
         data = newSequence;
+        chars = null;
+        bytes = null;
         regionStart = 0;
         regionEnd = data.length();
         resetState();
         return this;
     }
 
+    @Override
+    public ReMatcher reset(ByteBuffer utf8) throws RegexRuntimeException {
+        data = null;
+        chars = null;
+        bytes = utf8.slice();
+        runtime.setData(bytes);
+        regionStart = 0;
+        regionEnd = bytes.limit();
+        resetState();
+        return this;
+    }
+
     @Override
     public ReMatcher flags(ExecFlags... flags) {
         this.flags().clear();
@@ -170,39 +234,68 @@ final class HsreMatcher implements ReMatcher {
         return findInternal(pattern, regionStart, true);
     }
 
+    /* the runtime works out the groups when they are first needed. */
+    private int bound(int group, int which) {
+        checkMatch();
+        if (group != 0) {
+            runtime.dissect();
+        }
+        if (group < 0 || group >= runtime.nmatch) {
+            throw new IndexOutOfBoundsException("No group " + group);
+        }
+        return runtime.match[2 * group + which];
+    }
+
+    /* like java.util.regex.Matcher, there's nothing to report before a successful match. */
+    private void checkMatch() {
+        if (runtime.nmatch == 0) {
+            throw new IllegalStateException("No match available");
+        }
+    }
+
     @Override
     public int start() {
-        return runtime.match.get(0).start + matchOffset;
+        checkMatch();
+        return runtime.match[0];
     }
 
     @Override
     public int start(int group) {
-        return runtime.match.get(group).start + matchOffset;
+        return bound(group, 0);
     }
 
     @Override
     public int end() {
-        return runtime.match.get(0).end + matchOffset;
+        checkMatch();
+        return runtime.match[1];
     }
 
     @Override
     public int end(int group) {
-        return runtime.match.get(group).end + matchOffset;
+        return bound(group, 1);
     }
 
     @Override
     public String group() {
-        return data.subSequence(start(), end()).toString();
+        return group(0);
     }
 
     @Override
     public String group(int group) {
-        return data.subSequence(start(group), end(group)).toString();
+        int start = start(group);
+        if (start == -1) {
+            return null;
+        }
+        if (bytes != null) {
+            return Utf8.decode(bytes, start, end(group));
+        }
+        return new String(chars, start, end(group) - start);
     }
 
     @Override
     public int groupCount() {
-        return runtime.match.size() - 1; // omit the 'group' for the whole match.
+        runtime.dissect();
+        return runtime.nmatch - 1; // omit the 'group' for the whole match.
     }
 
     @Override
@@ -212,7 +305,7 @@ final class HsreMatcher implements ReMatcher {
                 .add("flags", flags)
                 .add("regionStart", regionStart)
                 .add("regionEnd", regionEnd)
-                .add("data", data)
+                .add("data", bytes == null ? data : bytes)
                 .toString();
     }
 }
@@ -18,9 +18,19 @@ package com.basistech.tclre;
 
 import com.google.common.base.MoreObjects;
 
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.io.ByteStreams;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.Serializable;
+import java.nio.ByteBuffer;
 import java.util.Collections;
 import java.util.EnumSet;
+import java.util.List;
 
 /**
  * A compiled regular expression. The method {@link #compile(String, PatternFlags...)} serves
@@ -68,6 +78,88 @@ public class HsrePattern implements RePattern, Serializable {
         return Compiler.compile(pattern, flagSet);
     }
 
+    /**
+     * Compile a pattern, or find it already compiled. Compiled patterns are kept in a cache shared by the whole
+     * process, by pattern and flags, up to an estimate of the most memory they can come to use, counting the
+     * DFA state caches that grow as they are used; the {@code tclre.patternCacheBytes} system property sets
+     * that, and it is 128M by default. If several threads ask for the same pattern
+     * at once, it is compiled just once.
+     * Patterns are safe to share between threads, so any number of them can use the result.
+     * @param pattern the pattern.
+     * @param flags flags that determine the interpretation of the pattern.
+     * @return the compiled pattern.
+     * @throws RegexException regex exception
+     */
+    public static RePattern compileCached(String pattern, EnumSet<PatternFlags> flags) throws RegexException {
+        return PatternCache.SHARED.compile(pattern, flags);
+    }
+
+    /**
+     * Compile a pattern, or find it already compiled; see {@link #compileCached(String, EnumSet)}.
+     * @param pattern the pattern.
+     * @param flags flags that determine the interpretation of the pattern.
+     * @return the compiled pattern.
+     * @throws RegexException regex exception
+     */
+    public static RePattern compileCached(String pattern, PatternFlags... flags) throws RegexException {
+        EnumSet<PatternFlags> flagSet = EnumSet.noneOf(PatternFlags.class);
+        Collections.addAll(flagSet, flags);
+        return PatternCache.SHARED.compile(pattern, flagSet);
+    }
+
+    /**
+     * Write compiled patterns in a compact binary form, which {@link #read(ByteBuffer)} loads
+     * much faster than Java serialization, and without compiling them again.
+     * The form is versioned; it can be read by versions of this library that use the same version of the form.
+     * @param patterns the patterns, from {@link #compile(String, PatternFlags...)}.
+     * @param out where to write them; this does not close it.
+     * @throws IOException from writing.
+     * @throws IllegalArgumentException if a pattern is some other implementation of {@link RePattern}.
+     */
+    public static void write(List<? extends RePattern> patterns, OutputStream out) throws IOException {
+        PatternCodec.write(of(patterns), new DataOutputStream(out));
+    }
+
+    /* the patterns themselves, reading any that come from a database. */
+    static List<HsrePattern> of(List<? extends RePattern> patterns) {
+        List<HsrePattern> hsrePatterns = Lists.newArrayList();
+        for (RePattern pattern : patterns) {
+            hsrePatterns.add(of(pattern));
+        }
+        return hsrePatterns;
+    }
+
+    static HsrePattern of(RePattern pattern) {
+        if (pattern instanceof DatabasePattern) {
+            return ((DatabasePattern) pattern).get();
+        }
+        if (pattern instanceof HsrePattern) {
+            return (HsrePattern) pattern;
+        }
+        throw new IllegalArgumentException("Not a pattern from this library: " + pattern.getClass().getName());
+    }
+
+    /**
+     * Read patterns written by {@link #write(List, OutputStream)}.
+     * @param in the patterns; this reads the stream to its end, and does not close it.
+     * @return the patterns, in the order in which they were written.
+     * @throws IOException if the data is not patterns in a version of the form that this can read, or from reading.
+     */
+    public static List<RePattern> read(InputStream in) throws IOException {
+        return read(ByteBuffer.wrap(ByteStreams.toByteArray(in)));
+    }
+
+    /**
+     * Read patterns written by {@link #write(List, OutputStream)}. The arrays of the machines are copied out of the buffer
+     * in bulk, so that this is quick with a direct or memory-mapped buffer as well.
+     * @param buffer the patterns, from the position of the buffer; this does not change the position.
+     * @return the patterns, in the order in which they were written.
+     * @throws IOException if the data is not patterns in a version of the form that this can read.
+     */
+    public static List<RePattern> read(ByteBuffer buffer) throws IOException {
+        return ImmutableList.<RePattern>copyOf(PatternCodec.read(buffer));
+    }
+
     @Override
     public HsreMatcher matcher(CharSequence data, ExecFlags... flags) {
         EnumSet<ExecFlags> flagSet = EnumSet.noneOf(ExecFlags.class);
@@ -90,6 +182,29 @@ public class HsrePattern implements RePattern, Serializable {
         }
     }
 
+    @Override
+    public HsreMatcher matcher(ByteBuffer utf8, ExecFlags... flags) {
+        EnumSet<ExecFlags> flagSet = EnumSet.noneOf(ExecFlags.class);
+        Collections.addAll(flagSet, flags);
+        return matcher(utf8, flagSet);
+    }
+
+    @Override
+    public HsreMatcher matcher(ByteBuffer utf8, EnumSet<ExecFlags> flags) {
+        try {
+            return new HsreMatcher(this, utf8, flags);
+        } catch (RegexException e) {
+            throw new RegexRuntimeException(e);
+        }
+    }
+
+    @Override
+    public ReStreamMatcher streamMatcher(ExecFlags... flags) {
+        EnumSet<ExecFlags> flagSet = EnumSet.noneOf(ExecFlags.class);
+        Collections.addAll(flagSet, flags);
+        return new HsreStreamMatcher(this, flagSet);
+    }
+
     @Override
     public String pattern() {
         return original;
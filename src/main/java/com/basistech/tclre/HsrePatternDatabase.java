@@ -0,0 +1,132 @@
+/*
+* Copyright 2014 Basis Technology Corp.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package com.basistech.tclre;
+
+import com.google.common.base.MoreObjects;
+import com.google.common.collect.ImmutableList;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.List;
+
+/**
+ * A file of compiled patterns, read a pattern at a time as they are used. {@link #open(File)} maps the
+ * file into memory and reads no more than its index, so opening even a large database is quick, and
+ * a pattern that is never used never takes up any heap. Processes that open the same file share its
+ * pages through the operating system's page cache.
+ * <p>
+ * Each pattern is read from the mapping, into the same arrays as a compiled pattern, when its first matcher
+ * is made; from then on it is just like a pattern from {@link HsrePattern#compile(String, PatternFlags...)}.
+ * The file is written by {@link #write(List, OutputStream)}; it must not change while it is open.
+ * </p>
+ */
+public final class HsrePatternDatabase {
+    private final ImmutableList<DatabasePattern> patterns;
+
+    private HsrePatternDatabase(ByteBuffer buffer) throws IOException {
+        int[] offsets = PatternCodec.readIndex(buffer);
+        DatabasePattern[] handles = new DatabasePattern[offsets.length];
+        for (int x = 0; x < offsets.length; x++) {
+            handles[x] = new DatabasePattern(buffer, offsets[x]);
+        }
+        patterns = ImmutableList.copyOf(handles);
+    }
+
+    /**
+     * Write a database.
+     * @param patterns the patterns, from {@link HsrePattern#compile(String, PatternFlags...)}.
+     * @param out where to write it; this does not close it.
+     * @throws IOException from writing.
+     * @throws IllegalArgumentException if a pattern is some other implementation of {@link RePattern}.
+     */
+    public static void write(List<? extends RePattern> patterns, OutputStream out) throws IOException {
+        PatternCodec.writeDatabase(HsrePattern.of(patterns), new DataOutputStream(out));
+    }
+
+    /**
+     * Open a database file, by mapping it into memory.
+     * @param file the file, from {@link #write(List, OutputStream)}.
+     * @return the database.
+     * @throws IOException if the file can't be mapped, or does not start with the index of a database.
+     */
+    public static HsrePatternDatabase open(File file) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            if (raf.length() > Integer.MAX_VALUE) {
+                throw new IOException("Pattern database is over 2GB: " + file);
+            }
+            // the mapping stays valid after the channel is closed.
+            return open(raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length()));
+        }
+    }
+
+    /**
+     * Open a database that is already in memory.
+     * @param buffer the database, from {@link #write(List, OutputStream)}, from the start of the buffer.
+     *               The database keeps the buffer; its contents must not change.
+     * @return the database.
+     * @throws IOException if the buffer does not start with the index of a database.
+     */
+    public static HsrePatternDatabase open(ByteBuffer buffer) throws IOException {
+        return new HsrePatternDatabase(buffer);
+    }
+
+    /**
+     * @return the number of patterns.
+     */
+    public int size() {
+        return patterns.size();
+    }
+
+    /**
+     * @param index the index of a pattern, in the order in which they were written.
+     * @return the pattern. This may be used just like a compiled pattern, including in
+     *         {@link HsrePatternSet#of(List)}; it is read from the database when it is first used.
+     */
+    public RePattern pattern(int index) {
+        return patterns.get(index);
+    }
+
+    /**
+     * @return all the patterns, in order; none of them are read by this.
+     */
+    public List<RePattern> patterns() {
+        return ImmutableList.<RePattern>copyOf(patterns);
+    }
+
+    /* the number of patterns read so far. */
+    int readCount() {
+        int count = 0;
+        for (DatabasePattern pattern : patterns) {
+            if (pattern.isRead()) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    @Override
+    public String toString() {
+        return MoreObjects.toStringHelper(this)
+                .add("size", patterns.size())
+                .toString();
+    }
+}
@@ -0,0 +1,178 @@
+/*
+* Copyright 2014 Basis Technology Corp.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package com.basistech.tclre;
+
+import com.google.common.base.MoreObjects;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+import java.io.Serializable;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.SortedMap;
+
+/**
+ * A compiled set of regular expressions. The {@code compile} methods serve as the factory.
+ * <p>
+ * The main machines of the patterns are combined into one DFA (see {@link UnionMachine}),
+ * so that finding out which of them match takes a single pass over the data, however many
+ * patterns there are. That pass is all that {@link #matching(CharSequence)} needs for most
+ * patterns; those with back-references are confirmed with their own matchers, since the
+ * machine can only rule them out. Patterns with lookahead constraints can't join the
+ * union, and are always run on their own.
+ * </p>
+ * <p>
+ * The union only says which patterns match, not where. So {@link #find(CharSequence)} still runs
+ * each pattern that matches on its own, to find where; that costs one run per matching pattern,
+ * although it saves the runs of all the patterns that don't match. All the runs share one copy of the data.
+ * </p>
+ * @see com.basistech.tclre.RePatternSet
+ */
+public class HsrePatternSet implements RePatternSet, Serializable {
+    static final long serialVersionUID = 1L;
+    private final List<HsrePattern> patterns;
+    private final UnionMachine union;
+    private final int[] members; // the pattern of each machine of the union
+    private final BitSet confirm; // patterns that need their own matcher to say whether they match
+    private final BitSet others; // patterns that aren't in the union at all
+
+    HsrePatternSet(List<HsrePattern> patterns) {
+        this.patterns = ImmutableList.copyOf(patterns);
+        List<Cnfa> machines = Lists.newArrayList();
+        List<RuntimeColorMap> maps = Lists.newArrayList();
+        List<Integer> memberList = Lists.newArrayList();
+        confirm = new BitSet(patterns.size());
+        others = new BitSet(patterns.size());
+        for (int x = 0; x < patterns.size(); x++) {
+            Guts guts = patterns.get(x).guts;
+            if (guts.tree.machine.hasLacons) {
+                others.set(x);
+                confirm.set(x);
+            } else {
+                machines.add(guts.tree.machine);
+                maps.add(guts.cm);
+                memberList.add(x);
+                if (0 != (guts.info & Flags.REG_UBACKREF)) {
+                    confirm.set(x);
+                }
+            }
+        }
+        union = machines.isEmpty() ? null : new UnionMachine(machines, maps);
+        members = new int[memberList.size()];
+        for (int m = 0; m < members.length; m++) {
+            members[m] = memberList.get(m);
+        }
+    }
+
+    /**
+     * Compile a set of patterns.
+     * @param patterns the patterns.
+     * @param flags flags that determine the interpretation of all of the patterns.
+     * @return the compiled set.
+     * @throws RegexException regex exception
+     */
+    public static RePatternSet compile(List<String> patterns, EnumSet<PatternFlags> flags) throws RegexException {
+        List<HsrePattern> compiled = Lists.newArrayList();
+        for (String pattern : patterns) {
+            compiled.add((HsrePattern) Compiler.compile(pattern, flags));
+        }
+        return new HsrePatternSet(compiled);
+    }
+
+    /**
+     * Compile a set of patterns.
+     * @param patterns the patterns.
+     * @param flags flags that determine the interpretation of all of the patterns.
+     * @return the compiled set.
+     * @throws RegexException regex exception
+     */
+    public static RePatternSet compile(List<String> patterns, PatternFlags... flags) throws RegexException {
+        EnumSet<PatternFlags> flagSet = EnumSet.noneOf(PatternFlags.class);
+        Collections.addAll(flagSet, flags);
+        return compile(patterns, flagSet);
+    }
+
+    /**
+     * Make a set from patterns that are already compiled; this allows the patterns to have different flags.
+     * @param patterns the patterns, from {@link HsrePattern#compile(String, PatternFlags...)}
+     *                 or {@link HsrePatternDatabase}.
+     * @return the set.
+     * @throws IllegalArgumentException if a pattern is some other implementation of {@link RePattern}.
+     */
+    public static RePatternSet of(List<RePattern> patterns) {
+        return new HsrePatternSet(HsrePattern.of(patterns));
+    }
+
+    @Override
+    public int size() {
+        return patterns.size();
+    }
+
+    @Override
+    public RePattern pattern(int index) {
+        return patterns.get(index);
+    }
+
+    /* the patterns that might match: those the union says match, and the ones it can't tell about. */
+    private BitSet candidates(char[] chars, int length) {
+        BitSet candidates = new BitSet(patterns.size());
+        if (union != null) {
+            BitSet matched = union.scan(chars, length);
+            for (int m = matched.nextSetBit(0); m >= 0; m = matched.nextSetBit(m + 1)) {
+                candidates.set(members[m]);
+            }
+        }
+        candidates.or(others);
+        return candidates;
+    }
+
+    @Override
+    public BitSet matching(CharSequence data) {
+        char[] chars = Runtime.chars(data, null);
+        BitSet matching = candidates(chars, data.length());
+        for (int x = matching.nextSetBit(0); x >= 0; x = matching.nextSetBit(x + 1)) {
+            if (confirm.get(x) && !new HsreMatcher(patterns.get(x), data, chars).test()) {
+                matching.clear(x);
+            }
+        }
+        return matching;
+    }
+
+    @Override
+    public SortedMap<Integer, ReMatcher> find(CharSequence data) {
+        SortedMap<Integer, ReMatcher> found = Maps.newTreeMap();
+        char[] chars = Runtime.chars(data, null);
+        BitSet candidates = candidates(chars, data.length());
+        for (int x = candidates.nextSetBit(0); x >= 0; x = candidates.nextSetBit(x + 1)) {
+            ReMatcher matcher = new HsreMatcher(patterns.get(x), data, chars);
+            if (matcher.find()) {
+                found.put(x, matcher);
+            }
+        }
+        return found;
+    }
+
+    @Override
+    public String toString() {
+        return MoreObjects.toStringHelper(this)
+                .add("patterns", patterns)
+                .toString();
+    }
+}
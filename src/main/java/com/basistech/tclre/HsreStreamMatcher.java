@@ -0,0 +1,217 @@
+/*
+* Copyright 2014 Basis Technology Corp.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package com.basistech.tclre;
+
+import com.google.common.base.MoreObjects;
+import com.google.common.collect.Lists;
+
+import java.nio.CharBuffer;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.List;
+
+/*
+ * Streaming matcher. The data that might still be part of a match is kept in a buffer,
+ * and the runtime runs over that; a match is settled when the runtime didn't have to look
+ * at the end of the buffer to find it (see Runtime.hitEnd). Whatever comes before the place
+ * where the next match might start is dropped, except for a codepoint of context.
+ * The runtime carries its runs over (see Runtime.carry), so that each exec picks up where the last
+ * one ran out of data, instead of going over the data it already saw again.
+ */
+final class HsreStreamMatcher implements ReStreamMatcher {
+    private static final int INITIAL_CAPACITY = 1024;
+    private static final int CONTEXT = 2; // enough to hold the codepoint before a match.
+
+    private final HsrePattern pattern;
+    private final EnumSet<ExecFlags> flags;
+    private final Runtime runtime;
+    private char[] buffer;
+    private int length; // the amount of data in the buffer
+    private long base; // the stream offset of the start of the buffer
+    private int from; // where the next match might start, in the buffer
+
+    HsreStreamMatcher(HsrePattern pattern, EnumSet<ExecFlags> flags) {
+        this.pattern = pattern;
+        this.flags = flags;
+        runtime = new Runtime();
+        runtime.carry = true;
+        buffer = new char[INITIAL_CAPACITY];
+    }
+
+    @Override
+    public List<Match> feed(CharSequence chunk) {
+        int size = chunk.length();
+        if (length + size > buffer.length) {
+            buffer = Arrays.copyOf(buffer, Math.max(length + size, buffer.length * 2));
+        }
+        if (chunk instanceof String) {
+            ((String) chunk).getChars(0, size, buffer, length);
+        } else {
+            for (int x = 0; x < size; x++) {
+                buffer[length + x] = chunk.charAt(x);
+            }
+        }
+        length += size;
+        return scan(false);
+    }
+
+    @Override
+    public List<Match> finish() {
+        List<Match> matches = scan(true);
+        runtime.forget();
+        length = 0;
+        base = 0;
+        from = 0;
+        return matches;
+    }
+
+    @Override
+    public int buffered() {
+        return length;
+    }
+
+    private List<Match> scan(boolean last) {
+        List<Match> matches = Lists.newArrayList();
+        // a surrogate pair might be split between chunks.
+        int end = !last && length > 0 && Character.isHighSurrogate(buffer[length - 1]) ? length - 1 : length;
+        runtime.setData(CharBuffer.wrap(buffer, 0, length), buffer);
+        int keep;
+        for (;;) {
+            boolean found;
+            try {
+                found = runtime.exec(pattern, 0, from, end, flags);
+            } catch (RegexException e) {
+                throw new RegexRuntimeException(e);
+            }
+            if (!found) {
+                keep = last ? end : runtime.resume;
+                break;
+            }
+            if (!last && runtime.hitEnd) {
+                // more data might make this match longer, or let an earlier one finish.
+                keep = from;
+                break;
+            }
+            runtime.dissect();
+            int matchStart = runtime.match[0];
+            int matchEnd = runtime.match[1];
+            matches.add(new StreamMatch(pattern.guts.nsub, runtime.match, runtime.nmatch, buffer, base));
+            if (matchEnd > matchStart) {
+                from = matchEnd;
+            } else if (matchEnd < end) {
+                from = runtime.next(matchEnd);
+            } else {
+                keep = end;
+                break;
+            }
+        }
+
+        // drop what no match can include.
+        from = Math.max(from, keep);
+        int cut = Math.max(0, from - CONTEXT);
+        if (cut > 0) {
+            System.arraycopy(buffer, cut, buffer, 0, length - cut);
+            length -= cut;
+            base += cut;
+            from -= cut;
+            runtime.shift(cut);
+        }
+        return matches;
+    }
+
+    @Override
+    public String toString() {
+        return MoreObjects.toStringHelper(this)
+                .add("pattern", pattern)
+                .add("flags", flags)
+                .add("base", base)
+                .add("buffered", length)
+                .toString();
+    }
+
+    /*
+     * A copy of the results of a match, since the buffer moves on.
+     */
+    private static final class StreamMatch implements Match {
+        private final long[] starts;
+        private final long[] ends;
+        private final String[] groups;
+
+        StreamMatch(int nsub, int[] match, int nmatch, char[] buffer, long base) {
+            int n = nsub + 1;
+            starts = new long[n];
+            ends = new long[n];
+            groups = new String[n];
+            for (int group = 0; group < n; group++) {
+                int start = group < nmatch ? match[2 * group] : -1;
+                if (start == -1) {
+                    starts[group] = -1;
+                    ends[group] = -1;
+                } else {
+                    int end = match[2 * group + 1];
+                    starts[group] = base + start;
+                    ends[group] = base + end;
+                    groups[group] = new String(buffer, start, end - start);
+                }
+            }
+        }
+
+        @Override
+        public long start() {
+            return starts[0];
+        }
+
+        @Override
+        public long end() {
+            return ends[0];
+        }
+
+        @Override
+        public long start(int group) {
+            return starts[group];
+        }
+
+        @Override
+        public long end(int group) {
+            return ends[group];
+        }
+
+        @Override
+        public String group() {
+            return groups[0];
+        }
+
+        @Override
+        public String group(int group) {
+            return groups[group];
+        }
+
+        @Override
+        public int groupCount() {
+            return groups.length - 1;
+        }
+
+        @Override
+        public String toString() {
+            return MoreObjects.toStringHelper(this)
+                    .add("start", starts[0])
+                    .add("end", ends[0])
+                    .add("group", groups[0])
+                    .toString();
+        }
+    }
+}
@@ -0,0 +1,163 @@
+/*
+* Copyright 2014 Basis Technology Corp.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package com.basistech.tclre;
+
+import com.google.common.base.Throwables;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import com.google.common.cache.Weigher;
+import com.google.common.util.concurrent.ExecutionError;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+
+import java.util.EnumSet;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * A cache of compiled patterns, by the pattern and its flags; see {@link HsrePattern#compileCached(String, EnumSet)}.
+ * The cache is bounded by an estimate of the memory that the patterns take up, and the least recently used
+ * ones go first. When several threads ask for the same pattern at once, one of them compiles it, and the others
+ * wait for it to finish.
+ */
+final class PatternCache {
+    static final String MAX_BYTES_PROPERTY = "tclre.patternCacheBytes";
+    /* cap on the estimated memory used by the patterns in the shared cache, including what their DFA caches may grow to. */
+    static final long MAX_BYTES = Long.getLong(MAX_BYTES_PROPERTY, 128L * 1024 * 1024);
+    static final PatternCache SHARED = new PatternCache(MAX_BYTES);
+    /* a rough allowance for the objects of a pattern, apart from its arrays. */
+    private static final int OVERHEAD = 512;
+
+    private final LoadingCache<Key, HsrePattern> cache;
+
+    PatternCache(long maxBytes) {
+        cache = CacheBuilder.newBuilder()
+                .maximumWeight(maxBytes)
+                .weigher(new Weigher<Key, HsrePattern>() {
+                    @Override
+                    public int weigh(Key key, HsrePattern pattern) {
+                        return bytes(pattern);
+                    }
+                })
+                .build(new CacheLoader<Key, HsrePattern>() {
+                    @Override
+                    public HsrePattern load(Key key) throws RegexException {
+                        return (HsrePattern) Compiler.compile(key.pattern, EnumSet.copyOf(key.flags));
+                    }
+                });
+    }
+
+    HsrePattern compile(String pattern, EnumSet<PatternFlags> flags) throws RegexException {
+        try {
+            return cache.get(new Key(pattern, flags));
+        } catch (ExecutionException | UncheckedExecutionException | ExecutionError e) {
+            Throwables.throwIfInstanceOf(e.getCause(), RegexException.class);
+            Throwables.throwIfUnchecked(e.getCause());
+            throw new RegexRuntimeException(e.getCause());
+        }
+    }
+
+    long size() {
+        return cache.size();
+    }
+
+    /**
+     * An estimate of the memory used by a pattern: its machines, the supplementary part of its color map,
+     * and the string. The BMP part of the color map is mostly pages shared with other patterns, so it is left out.
+     * Each machine that runs gets a state set cache, which can grow as the pattern is used, up to
+     * {@link DfaCache#MAX_BYTES} unless it started out complete, so each of those machines is charged for all
+     * that its cache could come to hold. The weight is fixed when a pattern is added, so this is what keeps
+     * the memory retained under the cap.
+     */
+    static int bytes(HsrePattern pattern) {
+        Guts guts = pattern.guts;
+        long bytes = OVERHEAD + 2L * pattern.original.length();
+        bytes += bytes(guts.search, true) + bytes(guts.tree, true, true);
+        if (guts.reverse != null) {
+            // finding the leftmost start runs copies of the main and reversed machines, not the reversed machine itself,
+            // and a second cache of the main machine when its own is complete; see Runtime#leftmost.
+            Cnfa machine = guts.tree.machine;
+            bytes += bytes(guts.reverse, false) + unanchoredBytes(machine) + unanchoredBytes(guts.reverse);
+            if (machine.cache().complete()) {
+                bytes += DfaCache.maxBytes(machine);
+            }
+        }
+        List<RuntimeSubexpression> lacons = guts.lookaheadConstraintMachines();
+        if (lacons != null) {
+            for (RuntimeSubexpression lacon : lacons) {
+                bytes += bytes(lacon, true, false);
+            }
+        }
+        bytes += 6L * guts.cm.ranges().size();
+        return (int) Math.min(bytes, Integer.MAX_VALUE);
+    }
+
+    /*
+     * 'runs' says whether this subexpression's machine is ever run, and 'dissected' whether working out the groups
+     * can run those below it: both sides of a concatenation, and the left side of each alternative.
+     */
+    private static long bytes(RuntimeSubexpression subexpression, boolean runs, boolean dissected) {
+        if (subexpression == null) {
+            return 0;
+        }
+        boolean left = dissected && (subexpression.op == '.' || subexpression.op == '|');
+        boolean right = dissected && subexpression.op == '.';
+        return OVERHEAD / 8 + bytes(subexpression.machine, runs)
+                + bytes(subexpression.left, left, dissected) + bytes(subexpression.right, right, dissected);
+    }
+
+    private static long bytes(Cnfa cnfa, boolean runs) {
+        if (cnfa == null) {
+            return 0;
+        }
+        return 8L * cnfa.arcs.length + 4L * cnfa.states.length + 2L * (cnfa.bos.length + cnfa.eos.length)
+                + (runs ? cnfa.maxCacheBytes() : 0);
+    }
+
+    /* the copy made by Cnfa#unanchored, which has a loop arc on pre for each color, and its cache. */
+    private static long unanchoredBytes(Cnfa cnfa) {
+        return 8L * (cnfa.arcs.length + cnfa.ncolors) + 4L * cnfa.states.length + cnfa.maxUnanchoredCacheBytes();
+    }
+
+    /* the pattern and a copy of its flags, so that changes to the caller's set don't affect the cache. */
+    private static final class Key {
+        final String pattern;
+        final EnumSet<PatternFlags> flags;
+
+        Key(String pattern, EnumSet<PatternFlags> flags) {
+            this.pattern = pattern;
+            this.flags = EnumSet.copyOf(flags);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key key = (Key) o;
+            return pattern.equals(key.pattern) && flags.equals(key.flags);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * pattern.hashCode() + flags.hashCode();
+        }
+    }
+}
@@ -0,0 +1,457 @@
+/*
+* Copyright 2014 Basis Technology Corp.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package com.basistech.tclre;
+
+import com.google.common.collect.BoundType;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Range;
+import com.google.common.collect.RangeMap;
+import com.google.common.collect.TreeRangeMap;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * A compact binary form for compiled patterns, much quicker to load than Java serialization.
+ * It holds the same things that serialization does: the machines, as their arc and state arrays,
+ * the color ranges, and the subexpression tree. Whatever the constructor of {@link Guts} works out
+ * from those, such as the literal prefix, is worked out again at load time. That includes the tables of
+ * an {@link PatternFlags#EAGER} pattern, which are not stored.
+ * <p>
+ * Everything is big-endian. The file starts with {@link #MAGIC} and {@link #VERSION}, then the number
+ * of patterns, then each pattern. Arrays are a length followed by the elements, which are
+ * read in bulk. A change to the layout has to come with a new version.
+ * </p>
+ * <p>
+ * A database, for {@link HsrePatternDatabase}, starts with {@link #DATABASE_MAGIC} and the version, then the number
+ * of patterns, then the offset of each pattern from the start, then the patterns themselves. That way, each one can
+ * be read on its own, when it is first needed.
+ * </p>
+ */
+final class PatternCodec {
+    static final int MAGIC = 0x54434c52; // TCLR
+    static final int DATABASE_MAGIC = 0x54434c44; // TCLD
+    static final int VERSION = 1;
+    private static final PatternFlags[] PATTERN_FLAGS = PatternFlags.values();
+
+    private PatternCodec() {
+        //
+    }
+
+    static void write(List<HsrePattern> patterns, DataOutputStream out) throws IOException {
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeInt(patterns.size());
+        for (HsrePattern pattern : patterns) {
+            write(pattern, out);
+        }
+        out.flush();
+    }
+
+    static void writeDatabase(List<HsrePattern> patterns, DataOutputStream out) throws IOException {
+        List<byte[]> records = Lists.newArrayListWithCapacity(patterns.size());
+        for (HsrePattern pattern : patterns) {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream recordOut = new DataOutputStream(bytes);
+            write(pattern, recordOut);
+            recordOut.flush();
+            records.add(bytes.toByteArray());
+        }
+        out.writeInt(DATABASE_MAGIC);
+        out.writeInt(VERSION);
+        out.writeInt(records.size());
+        long offset = 12 + 4 * records.size();
+        for (byte[] record : records) {
+            if (offset > Integer.MAX_VALUE) {
+                throw new IOException("Pattern database would be over 2GB");
+            }
+            out.writeInt((int) offset);
+            offset += record.length;
+        }
+        for (byte[] record : records) {
+            out.write(record);
+        }
+        out.flush();
+    }
+
+    private static void write(HsrePattern pattern, DataOutputStream out) throws IOException {
+        writeString(pattern.original, out);
+        long flags = 0;
+        for (PatternFlags flag : pattern.originalFlags) {
+            flags |= 1L << flag.ordinal();
+        }
+        out.writeLong(flags);
+        out.writeLong(pattern.info);
+        out.writeInt(pattern.nsub);
+
+        Guts guts = pattern.guts;
+        out.writeInt(guts.cflags);
+        out.writeLong(guts.info);
+        out.writeInt(guts.nsub);
+        out.writeInt(guts.ntree);
+        write(guts.cm, out);
+        write(guts.search, out);
+        out.writeBoolean(guts.reverse != null);
+        if (guts.reverse != null) {
+            write(guts.reverse, out);
+        }
+        write(guts.tree, out);
+        List<RuntimeSubexpression> lacons = guts.lookaheadConstraintMachines();
+        out.writeInt(lacons == null ? -1 : lacons.size());
+        if (lacons != null) {
+            for (RuntimeSubexpression lacon : lacons) {
+                write(lacon, out);
+            }
+        }
+    }
+
+    private static void writeString(String string, DataOutputStream out) throws IOException {
+        byte[] utf8 = string.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(utf8.length);
+        out.write(utf8);
+    }
+
+    /* the ranges, closed, and the color of each. */
+    private static void write(RuntimeColorMap cm, DataOutputStream out) throws IOException {
+        Set<Range<Integer>> ranges = cm.ranges();
+        out.writeInt(ranges.size());
+        for (Range<Integer> range : ranges) {
+            int min = range.lowerBoundType() == BoundType.OPEN ? range.lowerEndpoint() + 1 : range.lowerEndpoint();
+            int max = range.upperBoundType() == BoundType.OPEN ? range.upperEndpoint() - 1 : range.upperEndpoint();
+            out.writeInt(min);
+            out.writeInt(max);
+            out.writeShort(cm.getcolor(min));
+        }
+    }
+
+    private static void write(Cnfa cnfa, DataOutputStream out) throws IOException {
+        out.writeInt(cnfa.ncolors);
+        out.writeBoolean(cnfa.hasLacons);
+        out.writeInt(cnfa.pre);
+        out.writeInt(cnfa.post);
+        writeShorts(cnfa.bos, out);
+        writeShorts(cnfa.eos, out);
+        writeLongs(cnfa.arcs, out);
+        writeInts(cnfa.states, out);
+    }
+
+    /* the arrays go out in bulk, through a buffer, rather than an element at a time. */
+    private static void writeShorts(short[] shorts, DataOutputStream out) throws IOException {
+        ByteBuffer bytes = ByteBuffer.allocate(4 + shorts.length * 2);
+        bytes.putInt(shorts.length);
+        bytes.asShortBuffer().put(shorts);
+        out.write(bytes.array());
+    }
+
+    private static void writeInts(int[] ints, DataOutputStream out) throws IOException {
+        ByteBuffer bytes = ByteBuffer.allocate(4 + ints.length * 4);
+        bytes.putInt(ints.length);
+        bytes.asIntBuffer().put(ints);
+        out.write(bytes.array());
+    }
+
+    private static void writeLongs(long[] longs, DataOutputStream out) throws IOException {
+        ByteBuffer bytes = ByteBuffer.allocate(4 + longs.length * 8);
+        bytes.putInt(longs.length);
+        bytes.asLongBuffer().put(longs);
+        out.write(bytes.array());
+    }
+
+    private static void write(RuntimeSubexpression subexpression, DataOutputStream out) throws IOException {
+        out.writeBoolean(subexpression != null);
+        if (subexpression == null) {
+            return;
+        }
+        out.writeInt(subexpression.number);
+        out.writeChar(subexpression.op);
+        out.writeInt(subexpression.flags);
+        out.writeInt(subexpression.retry);
+        out.writeInt(subexpression.min);
+        out.writeInt(subexpression.max);
+        out.writeBoolean(subexpression.machine != null);
+        if (subexpression.machine != null) {
+            write(subexpression.machine, out);
+        }
+        write(subexpression.left, out);
+        write(subexpression.right, out);
+    }
+
+    /**
+     * Read patterns, starting at the position of a buffer. This leaves the position of the buffer alone.
+     */
+    static List<HsrePattern> read(ByteBuffer buffer) throws IOException {
+        try {
+            ByteBuffer in = header(buffer, MAGIC);
+            int count = readLength(in, 1);
+            List<HsrePattern> patterns = Lists.newArrayListWithCapacity(count);
+            for (int x = 0; x < count; x++) {
+                patterns.add(readPattern(in));
+            }
+            return patterns;
+        } catch (BufferUnderflowException | IllegalArgumentException | IndexOutOfBoundsException e) {
+            throw new IOException("Truncated or corrupt compiled patterns", e);
+        }
+    }
+
+    /* a big-endian duplicate of a buffer, positioned after its magic number and version, having checked them. */
+    private static ByteBuffer header(ByteBuffer buffer, int magic) throws IOException {
+        ByteBuffer in = buffer.duplicate().order(ByteOrder.BIG_ENDIAN);
+        if (in.getInt() != magic) {
+            throw new IOException("Not a file of compiled patterns");
+        }
+        int version = in.getInt();
+        if (version != VERSION) {
+            throw new IOException(String.format("Compiled pattern version %d; this reads version %d", version, VERSION));
+        }
+        return in;
+    }
+
+    /**
+     * Read the index of a database, from the start of a buffer.
+     * @return the offset of each pattern, from the start of the buffer.
+     */
+    static int[] readIndex(ByteBuffer buffer) throws IOException {
+        try {
+            ByteBuffer in = header(buffer, DATABASE_MAGIC);
+            int[] offsets = new int[readLength(in, 4)];
+            in.asIntBuffer().get(offsets);
+            for (int offset : offsets) {
+                if (offset < in.position() + offsets.length * 4 || offset >= in.limit()) {
+                    throw new IOException("Corrupt pattern database index");
+                }
+            }
+            return offsets;
+        } catch (BufferUnderflowException | IllegalArgumentException e) {
+            throw new IOException("Truncated or corrupt pattern database", e);
+        }
+    }
+
+    /**
+     * Read one pattern of a database.
+     * @param offset the offset of the pattern, from {@link #readIndex(ByteBuffer)}.
+     */
+    static HsrePattern readPattern(ByteBuffer buffer, int offset) throws IOException {
+        try {
+            return readPattern(record(buffer, offset));
+        } catch (BufferUnderflowException | IllegalArgumentException | IndexOutOfBoundsException e) {
+            throw new IOException("Truncated or corrupt pattern database", e);
+        }
+    }
+
+    /**
+     * Read just the string of one pattern of a database; it comes first, so this is cheap.
+     */
+    static String readOriginal(ByteBuffer buffer, int offset) throws IOException {
+        try {
+            return readString(record(buffer, offset));
+        } catch (BufferUnderflowException | IllegalArgumentException | IndexOutOfBoundsException e) {
+            throw new IOException("Truncated or corrupt pattern database", e);
+        }
+    }
+
+    /**
+     * Read just the flags of one pattern of a database; they come right after the string.
+     */
+    static EnumSet<PatternFlags> readOriginalFlags(ByteBuffer buffer, int offset) throws IOException {
+        try {
+            ByteBuffer in = record(buffer, offset);
+            int length = readLength(in, 1);
+            in.position(in.position() + length);
+            return readFlags(in);
+        } catch (BufferUnderflowException | IllegalArgumentException | IndexOutOfBoundsException e) {
+            throw new IOException("Truncated or corrupt pattern database", e);
+        }
+    }
+
+    private static ByteBuffer record(ByteBuffer buffer, int offset) {
+        ByteBuffer in = buffer.duplicate().order(ByteOrder.BIG_ENDIAN);
+        in.position(offset);
+        return in;
+    }
+
+    /*
+     * Read the length of an array, or a count, and make sure that it's no more than the rest of the data
+     * could hold, with each element taking at least so many bytes. Otherwise, corrupt data could ask
+     * for an enormous array.
+     */
+    private static int readLength(ByteBuffer in, int size) throws IOException {
+        return checkLength(in.getInt(), in, size);
+    }
+
+    private static int checkLength(int length, ByteBuffer in, int size) throws IOException {
+        if (length < 0 || length > in.remaining() / size) {
+            throw new IOException(String.format("Corrupt length %d at offset %d", length, in.position() - 4));
+        }
+        return length;
+    }
+
+    private static HsrePattern readPattern(ByteBuffer in) throws IOException {
+        String original = readString(in);
+        EnumSet<PatternFlags> originalFlags = readFlags(in);
+        long info = in.getLong();
+        int nsub = in.getInt();
+
+        int cflags = in.getInt();
+        long gutsInfo = in.getLong();
+        int gutsNsub = in.getInt();
+        int ntree = in.getInt();
+        RangeMap<Integer, Short> colors = readColorMap(in);
+        Cnfa search = readCnfa(in);
+        for (short color : colors.asMapOfRanges().values()) {
+            if (color >= search.ncolors) {
+                throw new IOException(String.format("Corrupt color %d, of %d", color, search.ncolors));
+            }
+        }
+        RuntimeColorMap cm = new RuntimeColorMap(colors);
+        Cnfa reverse = in.get() != 0 ? readCnfa(in) : null;
+        RuntimeSubexpression tree = readSubexpression(in);
+        int nlacons = in.getInt();
+        List<RuntimeSubexpression> lacons = null;
+        if (nlacons != -1) {
+            checkLength(nlacons, in, 1);
+            lacons = Lists.newArrayListWithCapacity(nlacons);
+            for (int n = 0; n < nlacons; n++) {
+                lacons.add(readSubexpression(in));
+            }
+        }
+        Guts guts = new Guts(cflags, gutsInfo, gutsNsub, tree, search, reverse, ntree, cm, Compiler.comparer(cflags), lacons);
+        return new HsrePattern(original, originalFlags, info, nsub, guts);
+    }
+
+    private static EnumSet<PatternFlags> readFlags(ByteBuffer in) {
+        long flags = in.getLong();
+        EnumSet<PatternFlags> originalFlags = EnumSet.noneOf(PatternFlags.class);
+        for (PatternFlags flag : PATTERN_FLAGS) {
+            if (0 != (flags & (1L << flag.ordinal()))) {
+                originalFlags.add(flag);
+            }
+        }
+        return originalFlags;
+    }
+
+    private static String readString(ByteBuffer in) throws IOException {
+        byte[] utf8 = new byte[readLength(in, 1)];
+        in.get(utf8);
+        return new String(utf8, StandardCharsets.UTF_8);
+    }
+
+    /* the ranges, which have to be of codepoints, and the color of each, which has to be a color. */
+    private static RangeMap<Integer, Short> readColorMap(ByteBuffer in) throws IOException {
+        int count = readLength(in, 10);
+        RangeMap<Integer, Short> map = TreeRangeMap.create();
+        for (int x = 0; x < count; x++) {
+            int min = in.getInt();
+            int max = in.getInt();
+            short color = in.getShort();
+            if (min < 0 || max > Character.MAX_CODE_POINT || color < 0) {
+                throw new IOException(String.format("Corrupt color range %x-%x:%d at offset %d", min, max, color, in.position() - 10));
+            }
+            map.put(Range.closed(min, max), color);
+        }
+        return map;
+    }
+
+    /*
+     * Everything that a run of the machine uses to index an array has to be in range: pre and post,
+     * where each state starts, the target of each arc, and the colors. Arc colors past ncolors are
+     * lookahead constraints, so only a machine with those may have them. Each state's arcs end with
+     * a colorless one, so the last arc has to be colorless, for the last state's sake.
+     */
+    private static Cnfa readCnfa(ByteBuffer in) throws IOException {
+        int offset = in.position();
+        int ncolors = in.getInt();
+        boolean hasLacons = in.get() != 0;
+        int pre = in.getInt();
+        int post = in.getInt();
+        short[] bos = readShorts(in);
+        short[] eos = readShorts(in);
+        long[] arcs = readLongs(in);
+        int[] states = readInts(in);
+        int nstates = states.length;
+        boolean valid = ncolors >= 0 && ncolors <= Short.MAX_VALUE + 1
+                && pre >= 0 && pre < nstates && post >= 0 && post < nstates
+                && validColors(bos, ncolors) && validColors(eos, ncolors)
+                && arcs.length > 0 && Cnfa.carcColor(arcs[arcs.length - 1]) == Constants.COLORLESS;
+        for (int x = 0; valid && x < nstates; x++) {
+            valid = states[x] >= 0 && states[x] < arcs.length - 1;
+        }
+        for (int x = 0; valid && x < arcs.length; x++) {
+            short color = Cnfa.carcColor(arcs[x]);
+            int target = Cnfa.carcTarget(arcs[x]);
+            valid = color == Constants.COLORLESS
+                    || (color >= 0 && (hasLacons || color < ncolors) && target >= 0 && target < nstates);
+        }
+        if (!valid) {
+            throw new IOException(String.format("Corrupt machine at offset %d", offset));
+        }
+        return new Cnfa(ncolors, hasLacons, pre, post, bos, eos, arcs, states);
+    }
+
+    private static boolean validColors(short[] colors, int ncolors) {
+        for (short color : colors) {
+            if (color != Constants.COLORLESS && (color < 0 || color >= ncolors)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static short[] readShorts(ByteBuffer in) throws IOException {
+        short[] shorts = new short[readLength(in, 2)];
+        in.asShortBuffer().get(shorts);
+        in.position(in.position() + shorts.length * 2);
+        return shorts;
+    }
+
+    private static int[] readInts(ByteBuffer in) throws IOException {
+        int[] ints = new int[readLength(in, 4)];
+        in.asIntBuffer().get(ints);
+        in.position(in.position() + ints.length * 4);
+        return ints;
+    }
+
+    private static long[] readLongs(ByteBuffer in) throws IOException {
+        long[] longs = new long[readLength(in, 8)];
+        in.asLongBuffer().get(longs);
+        in.position(in.position() + longs.length * 8);
+        return longs;
+    }
+
+    private static RuntimeSubexpression readSubexpression(ByteBuffer in) throws IOException {
+        if (in.get() == 0) {
+            return null;
+        }
+        int number = in.getInt();
+        char op = in.getChar();
+        int flags = in.getInt();
+        int retry = in.getInt();
+        int min = in.getInt();
+        int max = in.getInt();
+        Cnfa machine = in.get() != 0 ? readCnfa(in) : null;
+        RuntimeSubexpression left = readSubexpression(in);
+        RuntimeSubexpression right = readSubexpression(in);
+        return new RuntimeSubexpression(number, machine, op, left, right, flags, retry, min, max);
+    }
+}
@@ -55,5 +55,12 @@ public enum PatternFlags {
     /**
      * Changes the behavior of `^' and `$' (the ``anchors'') so they match the beginning and end of a line respectively. This is the same as specifying the (?w) embedded option.
      */
-    NLANCH;
+    NLANCH,
+    /**
+     * Build the complete DFA at compile time, so that matching never has to stop and work out a new state.
+     * This is only done for expressions without back-references or lookahead constraints, and only as long as
+     * each machine stays within a budget of states, set with the system property {@code tclre.eagerDfaStates}.
+     * Otherwise, the DFA is built lazily as usual.
+     */
+    EAGER;
 }
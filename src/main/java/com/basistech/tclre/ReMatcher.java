@@ -16,6 +16,7 @@
 
 package com.basistech.tclre;
 
+import java.nio.ByteBuffer;
 import java.util.EnumSet;
 import java.util.regex.MatchResult;
 
@@ -27,6 +28,10 @@ import java.util.regex.MatchResult;
  * attempts to satisfy the pattern with the entire string. Searching scans forward
  * through the string looking for a substring that satisfies the pattern.
  * <p></p>
+ * A matcher copies the chars of its data when it first matches in it, and both matches and reports
+ * groups from that copy; a later change to a mutable sequence isn't seen until {@link #reset(CharSequence)}.
+ * UTF-8 data in a {@link java.nio.ByteBuffer} is matched in place, and not copied.
+ * <p></p>
  * A matcher has a region. Initially, the region is the entire data, but
  * the application may call {@link #region(int, int)} to change it. Setting a region
  * limits the data examined by the matcher, but does not change the interpretation
@@ -47,7 +52,8 @@ public interface ReMatcher extends MatchResult {
     /**
      * Search for the pattern in the data, starting at the specified offset.
      * If this returns true, then the methods from {@link java.util.regex.MatchResult}
-     * return information about the match.
+     * return information about the match; if it returns false, they throw {@link IllegalStateException}
+     * until the next successful match, as they do after a reset.
      * @param startOffset an offset relative to the beginning of the data.
      * @return true if the pattern was found
      */
@@ -60,6 +66,18 @@ public interface ReMatcher extends MatchResult {
      */
     boolean find();
 
+    /**
+     * Find out whether the pattern matches anywhere in the region, without finding out where.
+     * This is quicker than {@link #find()}, since it doesn't have to work out the bounds of the match
+     * or of the groups; afterwards there is no match for the methods of {@link java.util.regex.MatchResult}
+     * to report, and the next {@link #find()} starts at the beginning of the region.
+     * @return true if the pattern was found
+     * @throws UnsupportedOperationException if this sort of matcher doesn't have it; the default does that.
+     */
+    default boolean test() {
+        throw new UnsupportedOperationException("test");
+    }
+
     /**
      * Specify a region that bounds searching and matching. The region is
      * [start, end]. This resets the current search position to the start
@@ -85,6 +103,20 @@ public interface ReMatcher extends MatchResult {
      */
     ReMatcher reset(CharSequence newSequence);
 
+    /**
+     * Change the data for this matcher to UTF-8 bytes: those from the position to the limit of a buffer.
+     * The region is set to all of them, and the previous match information is reset.
+     * From now on, offsets, including the region and the results, are byte offsets from the position.
+     * The bytes are matched in place, without decoding them to a string; the buffer must not change
+     * while the matcher is using it. Malformed UTF-8 matches as U+FFFD, a byte at a time.
+     * @param utf8 the new data.
+     * @return this matcher
+     * @throws UnsupportedOperationException if this sort of matcher can't match UTF-8; the default does that.
+     */
+    default ReMatcher reset(ByteBuffer utf8) {
+        throw new UnsupportedOperationException("UTF-8 matching");
+    }
+
     /**
      * Change the flags associated with this matcher.
      * @param flags the new flags.
@@ -16,6 +16,7 @@
 
 package com.basistech.tclre;
 
+import java.nio.ByteBuffer;
 import java.util.EnumSet;
 
 /**
@@ -39,6 +40,38 @@ public interface RePattern {
      */
     ReMatcher matcher(CharSequence data, EnumSet<ExecFlags> flags);
 
+    /**
+     * Create a matcher that works on UTF-8 bytes; see {@link com.basistech.tclre.ReMatcher#reset(ByteBuffer)}.
+     * @param utf8 the initial data that the matcher will process: the bytes from the position to the limit.
+     * @param flags optional flags that change the behavior of the matcher.
+     * @return the matcher
+     * @throws UnsupportedOperationException if this sort of pattern can't match UTF-8; the default does that.
+     */
+    default ReMatcher matcher(ByteBuffer utf8, ExecFlags... flags) {
+        throw new UnsupportedOperationException("UTF-8 matching");
+    }
+
+    /**
+     * Create a matcher that works on UTF-8 bytes; see {@link com.basistech.tclre.ReMatcher#reset(ByteBuffer)}.
+     * @param utf8 the initial data that the matcher will process: the bytes from the position to the limit.
+     * @param flags optional flags that change the behavior of the matcher.
+     * @return the matcher
+     * @throws UnsupportedOperationException if this sort of pattern can't match UTF-8; the default does that.
+     */
+    default ReMatcher matcher(ByteBuffer utf8, EnumSet<ExecFlags> flags) {
+        throw new UnsupportedOperationException("UTF-8 matching");
+    }
+
+    /**
+     * Create a matcher for data that arrives a chunk at a time.
+     * @param flags optional flags that change the behavior of the matcher.
+     * @return the matcher
+     * @throws UnsupportedOperationException if this sort of pattern can't match a stream; the default does that.
+     */
+    default ReStreamMatcher streamMatcher(ExecFlags... flags) {
+        throw new UnsupportedOperationException("stream matching");
+    }
+
     /**
      * @return string representation of pattern.
      */
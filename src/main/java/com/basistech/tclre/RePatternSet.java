@@ -0,0 +1,53 @@
+/*
+* Copyright 2014 Basis Technology Corp.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package com.basistech.tclre;
+
+import java.util.BitSet;
+import java.util.SortedMap;
+
+/**
+ * A set of compiled regular expressions, searched for together.
+ * Patterns are identified by their index in the set.
+ */
+public interface RePatternSet {
+    /**
+     * @return the number of patterns.
+     */
+    int size();
+
+    /**
+     * @param index the index of a pattern.
+     * @return the pattern.
+     */
+    RePattern pattern(int index);
+
+    /**
+     * Find out which patterns match somewhere in some data.
+     * @param data the data.
+     * @return the indices of the patterns that match.
+     */
+    BitSet matching(CharSequence data);
+
+    /**
+     * Find the patterns that match somewhere in some data, and where. Finding which match takes one pass
+     * over the data, as for {@link #matching(CharSequence)}; finding where takes a run of each pattern that matches.
+     * @param data the data.
+     * @return a matcher for each pattern that matches, by index. Each one has already found the first
+     *         match of its pattern, as if by {@link ReMatcher#find()}, and can go on to find the rest.
+     */
+    SortedMap<Integer, ReMatcher> find(CharSequence data);
+}
@@ -0,0 +1,94 @@
+/*
+* Copyright 2014 Basis Technology Corp.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package com.basistech.tclre;
+
+import java.util.List;
+
+/**
+ * A matcher for data that arrives a chunk at a time, such as from a socket or a queue.
+ * It finds the same matches that {@link ReMatcher#find()} would find, one after another, in all of
+ * the data put together, and reports each one as soon as more data can't change it.
+ * <p>
+ * Offsets are relative to the start of the stream. The matcher only keeps the data that a match
+ * might still include: from the start of the earliest match that might be in progress. So memory
+ * stays bounded as long as the matches, and the text that looks like the start of one, are.
+ * An expression like {@code a.*b} can keep everything from an 'a' on, waiting for a 'b'.
+ * </p>
+ */
+public interface ReStreamMatcher {
+    /**
+     * A match in the stream.
+     */
+    interface Match {
+        /**
+         * @return the offset of the start of the match.
+         */
+        long start();
+
+        /**
+         * @return the offset of the end of the match.
+         */
+        long end();
+
+        /**
+         * @param group a capturing group.
+         * @return the offset of the start of the group, or -1 if it didn't take part in the match.
+         */
+        long start(int group);
+
+        /**
+         * @param group a capturing group.
+         * @return the offset of the end of the group, or -1 if it didn't take part in the match.
+         */
+        long end(int group);
+
+        /**
+         * @return the text of the match.
+         */
+        String group();
+
+        /**
+         * @param group a capturing group.
+         * @return the text of the group, or null if it didn't take part in the match.
+         */
+        String group(int group);
+
+        /**
+         * @return the number of capturing groups.
+         */
+        int groupCount();
+    }
+
+    /**
+     * Add the next chunk of data.
+     * @param chunk the data.
+     * @return the matches that this chunk has settled, in order.
+     */
+    List<Match> feed(CharSequence chunk);
+
+    /**
+     * Mark the end of the data; the end of the last chunk is the end of the stream.
+     * After this, the matcher can be used for a new stream.
+     * @return the rest of the matches.
+     */
+    List<Match> finish();
+
+    /**
+     * @return the number of chars that the matcher is keeping.
+     */
+    int buffered();
+}
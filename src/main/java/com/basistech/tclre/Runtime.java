@@ -16,11 +16,14 @@
 
 package com.basistech.tclre;
 
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.StandardCharsets;
 import java.util.Arrays;
 import java.util.EnumSet;
-import java.util.List;
 
-import com.google.common.collect.Lists;
+import it.unimi.dsi.fastutil.objects.Reference2ObjectMap;
+import it.unimi.dsi.fastutil.objects.Reference2ObjectOpenHashMap;
 
 /**
  * The internal implementation of matching.
@@ -29,19 +32,90 @@ class Runtime {
     private static final int UNTRIED = 0;   /* not yet tried at all */
     private static final int TRYING = 1;    /* top matched, trying submatches */
     private static final int TRIED = 2;     /* top didn't match or submatches exhausted */
+    private static final int LACON_MEMO = 1024; /* entries in the memo of lookahead constraint results; a power of 2 */
 
     Guts g;
     int eflags;
-    List<RegMatch> match;
+    /* the bounds of the groups, the whole match being group 0: match[2n] is where group n starts, match[2n + 1] where it ends; -1 if it didn't match. */
+    int[] match;
+    int nmatch; // the number of groups reported in 'match'; those after the last one that matched may be left out.
     CharSequence data;
-    int dataLength; // cache this, it gets examined _a lot_.
+    char[] chars; // a copy of the same, which is what gets matched; see chars(CharSequence, char[]).
+    ByteBuffer bytes; // or else UTF-8, instead of data and chars.
+    int dataStart; // where BOS is; the data before here is not consulted.
+    int dataEnd; // where EOS is; cache this, it gets examined _a lot_.
+    /* whether the last exec looked at EOS; if not, more data after dataEnd wouldn't change its outcome. */
+    boolean hitEnd;
+    /* whether a lookahead constraint looked at EOS; the search machine's idea of where a match might start doesn't allow for those. */
+    boolean laconHitEnd;
+    /* after an exec that failed, the first offset at which a match might start if there were more data. */
+    int resume;
+    /*
+     * whether runs of the machines pick up where the last ones left off (see Dfa#resumable); only for data
+     * that just grows at the end, as in a stream matcher. See shift() and forget().
+     */
+    boolean carry;
     private HsrePattern re;
+    private RuntimeColorMap cm;
+    private byte[] prefix; // the literal prefix, in UTF-8, for matching bytes; null if there's none.
+    /* a Dfa for each machine of the pattern that has been run; see dfa(Cnfa). */
+    private final Reference2ObjectMap<Cnfa, Dfa> dfas = new Reference2ObjectOpenHashMap<>();
+    private Dfa reach; // the Dfa that Dfa#reach finishes with, when the main machine's cache is complete.
+    private final int[] coldp = new int[1]; // scratch for find.
+    private final boolean[] hitendp = new boolean[1]; // scratch for find.
+    /* lookahead constraint results in this exec, by position; see lacon(). Created on first use. */
+    private long[] laconMemo;
+    private boolean laconMemoUsed;
     private int[] mem; // backtracking.
+    private boolean undissected; // the groups of the match are yet to be worked out; see dissect().
+    private CharBuffer view; // chars, as a CharSequence for the back-reference comparator; made when first needed.
+
+    /**
+     * Match chars from now on.
+     * @param data the data.
+     * @param chars the chars of the data, from {@link #chars(CharSequence, char[])}.
+     */
+    void setData(CharSequence data, char[] chars) {
+        this.data = data;
+        this.chars = chars;
+        this.bytes = null;
+        view = null;
+    }
+
+    /**
+     * Match UTF-8 from now on. Offsets, including those of the results, are byte offsets.
+     * @param utf8 the data; this uses absolute offsets, and ignores the position and limit.
+     */
+    void setData(ByteBuffer utf8) {
+        this.data = null;
+        this.chars = null;
+        this.bytes = utf8;
+        view = null;
+    }
 
     /**
      * exec - match regular expression
+     * <p>
+     * Offsets, including those of the results, are offsets in the data from {@link #setData}; it is not copied.
+     * </p>
+     *
+     * @param start where the data starts, for matching purposes: BOS and the start of {@code lookingAt}.
+     * @param from where to start looking for a match; the data before here, back to start, is still context.
+     * @param end where the data ends, for matching purposes: EOS.
+     */
+    boolean exec(HsrePattern re, int start, int from, int end, EnumSet<ExecFlags> execFlags) throws RegexException {
+        return exec(re, start, from, end, execFlags, 0);
+    }
+
+    /**
+     * Find out whether there is a match between start and end, and nothing else; afterwards, there is
+     * no match to report. Unless the pattern has back-references, this only runs the search machine.
      */
-    boolean exec(HsrePattern re, CharSequence data, EnumSet<ExecFlags> execFlags) throws RegexException {
+    boolean test(HsrePattern re, int start, int end, EnumSet<ExecFlags> execFlags) throws RegexException {
+        return exec(re, start, start, end, execFlags, Flags.REG_TEST);
+    }
+
+    private boolean exec(HsrePattern re, int start, int from, int end, EnumSet<ExecFlags> execFlags, int extraFlags) throws RegexException {
     /* sanity checks */
     /* setup */
 
@@ -50,7 +124,7 @@ class Runtime {
             throw new RegexException("Regex marked impossible");
         }
 
-        eflags = 0;
+        eflags = extraFlags;
         for (ExecFlags ef : execFlags) {
             switch (ef) {
             case NOTBOL:
@@ -68,20 +142,28 @@ class Runtime {
         }
 
         this.re = re;
-        this.g = re.guts;
-        this.data = data;
-        this.dataLength = this.data.length();
-        if (this.match != null) {
-            this.match.clear();
-        } else {
-            this.match = Lists.newArrayList();
+        if (g != re.guts) {
+            this.g = re.guts;
+            this.cm = g.cm;
+            this.prefix = utf8Prefix(g.prefix);
+            dfas.clear();
         }
-        match.add(null); // make room for 1.
-        if (0 != (g.info & Flags.REG_UBACKREF)) {
-            while (match.size() < g.nsub + 1) {
-                match.add(null);
-            }
+        this.dataStart = start;
+        this.dataEnd = end;
+        this.hitEnd = false;
+        this.laconHitEnd = false;
+        this.resume = from;
+        this.undissected = false;
+        if (laconMemoUsed) {
+            Arrays.fill(laconMemo, -1L);
+            laconMemoUsed = false;
+        }
+        int size = 2 * (g.nsub + 1);
+        if (match == null || match.length < size) {
+            match = new int[size];
         }
+        Arrays.fill(match, 0, size, -1);
+        nmatch = 0 != (g.info & Flags.REG_UBACKREF) ? g.nsub + 1 : 1;
         if (mem != null && mem.length >= g.ntree) {
             Arrays.fill(mem, 0);
         } else {
@@ -92,9 +174,9 @@ class Runtime {
         assert g.tree != null;
 
         if (0 != (g.info & Flags.REG_UBACKREF)) {
-            return cfind(g.tree.machine);
+            return cfind(g.tree.machine, from);
         } else {
-            return find(g.tree.machine);
+            return find(g.tree.machine, from);
         }
     }
 
@@ -112,7 +194,7 @@ class Runtime {
      * If the search machine succeeds, the does an iteration to find the exact bounds;
      * the loop uses 'longest' or 'shortest' as appropriate to the flags. In C, there was an option to
      * _only_ run the search machine and return a simple boolean with no bounds.
-     * We have no API for that via an ExecFlag.
+     * That's {@link #test}; it stops as soon as the search machine gets to its post state.
      * </p>
      * <p>
      * If the top-level API call is 'lookingAt', we never want to scan down the data looking for matches. But 'shortest'
@@ -120,9 +202,22 @@ class Runtime {
      * were very common, I suppose that it would be faster to omit this step in that case. Thereafter, the loop has
      * a check to bail if these is no match at the beginning of the data, which is the constraint of lookingAt.
      * </p>
+     * <p>
+     * If every match starts with some literal text (see {@link Cnfa#literalPrefix}), a plain
+     * substring search tells us where to start the search machine, and which starting points are
+     * worth trying. Failing that, the colors that a match can start with (see {@link Cnfa#firstColors})
+     * do the same job, one character at a time. See {@link #candidate}.
+     * </p>
+     * <p>
+     * Most of the time, the first place that the loop tries is where the match starts. If it isn't,
+     * trying the rest one at a time could take time quadratic in the length of the data, since each try
+     * can run to the end. So, instead, one pass forward finds how far any match that starts by 'close' can go
+     * (see {@link Dfa#reach}), and one pass of the reversed main machine (see {@link Cnfa#reverse}) back from
+     * there finds the earliest start of any of them; then the loop goes straight there.
+     * </p>
      *
      */
-    boolean find(Cnfa cnfa) {
+    boolean find(Cnfa cnfa, int from) {
         int begin;
         int end = -1;
         int cold;
@@ -131,8 +226,8 @@ class Runtime {
         boolean hitend;
         boolean shorter = 0 != (g.tree.flags & Subre.SHORTER);
         boolean lookingAt = 0 != (eflags & Flags.REG_LOOKING_AT);
-        int[] coldp = new int[1];
-        Dfa d = new Dfa(this, cnfa);
+        int[] coldp = this.coldp;
+        Dfa d = dfa(cnfa);
 
         if (lookingAt) {
             /*
@@ -145,22 +240,32 @@ class Runtime {
              * These initial calls to shortest should be all the opportunity we need
              * to do 'lookingAt'.
              */
-            close = d.shortest(0, 0, data.length(), coldp, null);
-            cold = 0;
+            close = d.shortest(from, from, dataEnd, coldp, null);
+            cold = from;
         } else {
-            /* First, a shot with the search RE. */
-            Dfa s = new Dfa(this, g.search);
-            close = s.shortest(0, 0, data.length(), coldp, null);
+            /* First, a shot with the search RE, from the first place that a match could start. */
+            int first = candidate(from);
+            if (first == -1) {
+                resume = unmatched(from);
+                return false;
+            }
+            Dfa s = dfa(g.search);
+            close = s.shortest(first, first, dataEnd, coldp, null);
             cold = coldp[0];
+            resume = laconHitEnd ? from : cold;
         }
 
         if (close == -1) {      /* not found */
             return false;
         }
+        if (0 != (eflags & Flags.REG_TEST)) {   /* found, don't need exact location */
+            return true;
+        }
 
     /* find starting point and match */
         open = cold;
         cold = -1;
+        boolean tried = false;
 
         for (begin = open; begin <= close; begin++) {
             /*
@@ -168,17 +273,30 @@ class Runtime {
              * I'm not sure this test can even ever go off, since the 'shortest' test
              * up above should accomplish the same thing.
              */
-            if (begin > 0 && lookingAt) {
+            if (begin > from && lookingAt) {
                 return false;
             }
+            if (!lookingAt) {
+                begin = candidate(begin);
+                if (begin == -1 || begin > close) {
+                    break;
+                }
+                if (tried && g.reverse != null) {
+                    begin = leftmost(begin, close);
+                    if (begin == -1) {
+                        break;
+                    }
+                }
+            }
 
-            boolean[] hitendp = new boolean[1];
+            boolean[] hitendp = this.hitendp;
             if (shorter) {
-                end = d.shortest(begin, begin, data.length(), null, hitendp);
+                end = d.shortest(begin, begin, dataEnd, null, hitendp);
             } else {
-                end = d.longest(begin, data.length(), hitendp);
+                end = d.longest(begin, dataEnd, hitendp);
             }
             hitend = hitendp[0];
+            tried = true;
 
             if (hitend && cold == -1) {
                 cold = begin;
@@ -192,33 +310,304 @@ class Runtime {
             return false;
         }
 
-        /* and pin down details */
-        match.set(0, new RegMatch(begin, end));
+        /* and pin down details; the groups wait until someone asks for them. */
+        match[0] = begin;
+        match[1] = end;
+        undissected = re.nsub > 0;
+        return true;
+    }
+
+    /**
+     * Find the earliest start of a match of the main machine, among those that start from 'first' through 'last'.
+     * @return the start, or -1 if there's no such match.
+     */
+    private int leftmost(int first, int last) {
+        Cnfa machine = g.tree.machine;
+        Dfa d = dfa(machine);
+        if (d.cache.complete()) {
+            if (reach == null || reach.cnfa != machine) {
+                reach = new Dfa(this, machine, machine.reachCache());
+            }
+            d = reach;
+        }
+        int end = d.reach(dfa(machine.unanchored()), first, last);
+        if (end == -1) {
+            return -1;
+        }
+        return dfa(g.reverse.unanchored()).leftmost(end, first);
+    }
+
+    /**
+     * For {@link #carry}: the first 'cut' chars of the data are gone, and the rest have moved down.
+     */
+    void shift(int cut) {
+        for (Dfa d : dfas.values()) {
+            d.shift(cut);
+        }
+    }
+
+    /**
+     * For {@link #carry}: the data is starting over, so no run can pick up from an earlier one.
+     */
+    void forget() {
+        shift(Integer.MAX_VALUE);
+    }
+
+    /**
+     * Get the Dfa for a machine. A runtime keeps one for each machine, and reuses it from one run to the next,
+     * so that matching doesn't allocate them over and over. That works because a Dfa only holds on to
+     * anything for the length of one call to shortest, longest or leftmost, and no machine runs inside a run
+     * of itself; a lookahead constraint runs its own machine.
+     */
+    Dfa dfa(Cnfa cnfa) {
+        Dfa d = dfas.get(cnfa);
+        if (d == null) {
+            d = new Dfa(this, cnfa);
+            dfas.put(cnfa, d);
+        }
+        return d;
+    }
+
+    /**
+     * Evaluate a lookahead constraint. The same constraint tends to be evaluated at the same place
+     * over and over, as the search and the begin loop pass through it, so the results are kept in a
+     * direct-mapped memo, good until the next exec. When the constraint's machine has no loops,
+     * the run only goes as far as the longest match of the constraint could.
+     *
+     * @param n the index of the constraint.
+     * @param cp where it is evaluated.
+     * @return whether it is satisfied.
+     */
+    boolean lacon(int n, int cp) {
+        if (laconMemo == null) {
+            laconMemo = new long[LACON_MEMO];
+            Arrays.fill(laconMemo, -1L);
+        }
+        int slot = (cp ^ n * 0x9e3779b9) & (LACON_MEMO - 1);
+        long key = ((long) cp << 32) | ((long) n << 1);
+        long entry = laconMemo[slot];
+        if ((entry & ~1L) == key) {
+            return (entry & 1L) != 0;
+        }
+
+        RuntimeSubexpression subex = g.lookaheadConstraintMachine(n);
+        int stop = dataEnd;
+        int steps = g.laconSteps == null ? -1 : g.laconSteps[n];
+        if (steps != -1) {
+            // each step is on one codepoint, which is at most two chars or four bytes.
+            long furthest = cp + (long) steps * (bytes == null ? 2 : 4);
+            if (furthest < dataEnd) {
+                stop = (int) furthest;
+            }
+        }
+        boolean hitEndBefore = hitEnd;
+        hitEnd = false;
+        int end = dfa(subex.machine).longest(cp, stop, null);
+        if (hitEnd) {
+            laconHitEnd = true;
+        }
+        hitEnd |= hitEndBefore;
+        boolean result = (subex.number != 0) ? (end != -1) : (end == -1);
+        laconMemo[slot] = key | (result ? 1L : 0L);
+        laconMemoUsed = true;
+        return result;
+    }
+
+    /**
+     * Work out the groups of the last match found by {@link #find}, if that hasn't been done yet.
+     * Many callers only want to know whether, or where, there is a match, so find() leaves this until
+     * the groups are asked for; it has to happen before the data or the runtime is used for anything else.
+     */
+    void dissect() {
+        if (undissected && nmatch > 0) { // HsreMatcher clears the match when it resets.
+            undissected = false;
+            dissect(g.tree, match[0], match[1]);
+        }
+    }
+
+
+    /**
+     * Copy the chars of some data into an array, so that the matching loops index an array instead of
+     * calling {@link CharSequence#charAt} through an interface, whatever the sort of data. The copy is
+     * in bulk where there's a way to do that. It is a snapshot: the matching, and the groups of the matches,
+     * come from it, and don't see any later change to the data. This is meant to be done once for
+     * some data, and used for every match in it.
+     *
+     * @param buffer an array to copy into if it's long enough, or null.
+     * @return the chars, at the start of 'buffer' or of a new array.
+     */
+    static char[] chars(CharSequence data, char[] buffer) {
+        int length = data.length();
+        char[] chars = buffer != null && buffer.length >= length ? buffer : new char[length];
+        if (data instanceof String) {
+            ((String) data).getChars(0, length, chars, 0);
+        } else if (data instanceof StringBuilder) {
+            ((StringBuilder) data).getChars(0, length, chars, 0);
+        } else if (data instanceof StringBuffer) {
+            ((StringBuffer) data).getChars(0, length, chars, 0);
+        } else if (data instanceof CharBuffer) {
+            ((CharBuffer) data).duplicate().get(chars, 0, length);
+        } else {
+            for (int x = 0; x < length; x++) {
+                chars[x] = data.charAt(x);
+            }
+        }
+        return chars;
+    }
 
-        // no need to do the work.
-        return re.nsub <= 0 || dissect(g.tree, begin, end);
+    /**
+     * Skip over data where no match can start.
+     *
+     * @return the first offset at or after 'from' where a match might start, or -1 if there's none.
+     */
+    private int candidate(int from) {
+        if (bytes == null ? !g.prefix.isEmpty() : prefix != null) {
+            return bytes == null ? indexOf(g.prefix, from) : indexOf(prefix, from);
+        }
+        boolean[] first = g.firstColors;
+        if (first == null) {
+            return from;
+        }
+        for (int x = from; x < dataEnd; x = next(x)) {
+            if (first[colorAt(x)]) {
+                return x;
+            }
+        }
+        return -1;
     }
 
+    /**
+     * @return the part of a literal prefix that can be looked for in UTF-8, or null if there's none. That stops short of
+     *         any U+FFFD, since a malformed byte matches that without being its UTF-8.
+     */
+    private static byte[] utf8Prefix(String literal) {
+        int length = literal.indexOf(Utf8.REPLACEMENT);
+        if (length == -1) {
+            length = literal.length();
+        }
+        return length == 0 ? null : literal.substring(0, length).getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @return where a match might start given more data, when {@link #candidate} has found no place before the end.
+     */
+    private int unmatched(int from) {
+        if (bytes == null ? g.prefix.isEmpty() : prefix == null) {
+            return dataEnd;
+        }
+        // the literal might be cut off at the end.
+        int length = bytes == null ? g.prefix.length() : prefix.length;
+        return Math.max(from, dataEnd - length + 1);
+    }
+
+    /**
+     * @return the offset of the first occurrence of some UTF-8 in the data, at or after 'from'; or -1.
+     */
+    private int indexOf(byte[] literal, int from) {
+        int last = dataEnd - literal.length;
+        byte first = literal[0];
+        for (int x = from; x <= last; x++) {
+            if (bytes.get(x) == first) {
+                int y = 1;
+                while (y < literal.length && bytes.get(x + y) == literal[y]) {
+                    y++;
+                }
+                if (y == literal.length) {
+                    return x;
+                }
+            }
+        }
+        return -1;
+    }
+
+    /*
+     * The data is chars or UTF-8; these three hide the difference from the Dfa loops.
+     */
+
+    /**
+     * @return the color of the codepoint at 'x'.
+     */
+    short colorAt(int x) {
+        if (bytes == null) {
+            char theChar = chars[x];
+            if (Character.isHighSurrogate(theChar) && x + 1 < dataEnd && Character.isLowSurrogate(chars[x + 1])) {
+                return cm.getcolor(Character.toCodePoint(theChar, chars[x + 1]));
+            }
+            return cm.getcolor(theChar);
+        }
+        int lead = bytes.get(x);
+        if (lead >= 0) {
+            return cm.getcolor((char) lead);
+        }
+        return cm.getcolor(Utf8.codePointAt(bytes, x, Utf8.length(bytes, x, dataEnd)));
+    }
+
+    /**
+     * @return the offset of the codepoint after the one at 'x'.
+     */
+    int next(int x) {
+        if (bytes == null) {
+            return Character.isHighSurrogate(chars[x]) && x + 1 < dataEnd
+                    && Character.isLowSurrogate(chars[x + 1]) ? x + 2 : x + 1;
+        }
+        return bytes.get(x) >= 0 ? x + 1 : x + Utf8.length(bytes, x, dataEnd);
+    }
+
+    /**
+     * @return the offset of the codepoint before 'x'; it doesn't go back past the start of the data.
+     */
+    int previous(int x) {
+        if (bytes == null) {
+            return Character.isLowSurrogate(chars[x - 1]) && x - 2 >= dataStart
+                    && Character.isHighSurrogate(chars[x - 2]) ? x - 2 : x - 1;
+        }
+        return bytes.get(x - 1) >= 0 ? x - 1 : Utf8.previous(bytes, x, dataStart);
+    }
+
+    /**
+     * @return the offset of the first occurrence of a literal in the data, at or after 'from'; or -1.
+     */
+    private int indexOf(String literal, int from) {
+        int last = dataEnd - literal.length();
+        if (data instanceof String) {
+            // this one has the benefit of JIT intrinsics.
+            int x = ((String) data).indexOf(literal, from);
+            return x <= last ? x : -1;
+        }
+        char first = literal.charAt(0);
+        for (int x = from; x <= last; x++) {
+            if (chars[x] == first) {
+                int y = 1;
+                while (y < literal.length() && chars[x + y] == literal.charAt(y)) {
+                    y++;
+                }
+                if (y == literal.length()) {
+                    return x;
+                }
+            }
+        }
+        return -1;
+    }
 
     /**
      * cfind - find a match for the main NFA (with complications)
      */
-    private boolean cfind(Cnfa cnfa) {
+    private boolean cfind(Cnfa cnfa, int from) {
         int[] cold = new int[1];
 
-        Dfa s = new Dfa(this, g.search);
-        Dfa d = new Dfa(this, cnfa);
+        Dfa s = dfa(g.search);
+        Dfa d = dfa(cnfa);
 
-        return cfindloop(d, s, cold);
+        return cfindloop(d, s, from, cold);
     }
 
     /**
      * cfindloop - the heart of cfind
      */
-    private boolean cfindloop(Dfa d, Dfa s, int[] coldp) {
+    private boolean cfindloop(Dfa d, Dfa s, int start, int[] coldp) {
         int begin;
         int end;
-        int cold;
+        int cold = -1;
         int open;       /* open and close of range of possible starts */
         int close;
         int estart;
@@ -228,7 +617,7 @@ class Runtime {
         boolean lookingAt = 0 != (eflags & Flags.REG_LOOKING_AT);
 
         assert d != null && s != null;
-        close = 0;
+        close = start;
         do {
             int[] cold0 = new int[1];
             /*
@@ -236,12 +625,18 @@ class Runtime {
              */
             if (lookingAt) {
                 // in the looking at case, we use the un-search-ified RE.
-                close = d.shortest(close, close, data.length(), cold0, null);
-                cold = 0;
+                close = d.shortest(close, close, dataEnd, cold0, null);
+                cold = start;
 
             } else {
-                close = s.shortest(close, close, data.length(), cold0, null);
+                int from = candidate(close);
+                if (from == -1) {
+                    resume = unmatched(close);
+                    break;          /* NOTE BREAK */
+                }
+                close = s.shortest(from, from, dataEnd, cold0, null);
                 cold = cold0[0];
+                resume = laconHitEnd ? from : cold;
             }
 
             if (close == -1) {
@@ -253,12 +648,18 @@ class Runtime {
 
             for (begin = open; begin <= close; begin++) {
 
-                if (begin > 0 && lookingAt) {
+                if (begin > start && lookingAt) {
                     // Is this possible given the looking-at constraint in the call to shortest above?
                     return false;
                 }
+                if (!lookingAt) {
+                    begin = candidate(begin);
+                    if (begin == -1 || begin > close) {
+                        break;
+                    }
+                }
                 estart = begin;
-                estop = data.length();
+                estop = dataEnd;
                 for (;;) {
                     if (shorter) {
                         end = d.shortest(begin, estart, estop, null, hitend);
@@ -272,16 +673,15 @@ class Runtime {
                         break;      /* NOTE BREAK OUT */
                     }
 
-                    for (int x = 0; x < match.size(); x++) {
-                        match.set(x, null);
-                    }
+                    Arrays.fill(match, 0, 2 * nmatch, -1);
 
                     int maxsubno = getMaxSubno(g.tree, 0);
                     mem = new int[maxsubno + 1];
                     boolean matched = cdissect(g.tree, begin, end);
                     if (matched) {
                         // indicate the full match bounds.
-                        match.set(0, new RegMatch(begin, end));
+                        match[0] = begin;
+                        match[1] = end;
                         coldp[0] = cold;
                         return true;
                     }
@@ -298,7 +698,7 @@ class Runtime {
                     }
                 }
             }
-        } while (close < data.length());
+        } while (close < dataEnd);
 
         coldp[0] = cold;
         return false;
@@ -312,11 +712,9 @@ class Runtime {
 
         assert n > 0;
 
-        while (match.size() < (n + 1)) {
-            match.add(null);
-        }
-
-        match.set(n, new RegMatch(begin, end));
+        nmatch = Math.max(nmatch, n + 1);
+        match[2 * n] = begin;
+        match[2 * n + 1] = end;
     }
 
     /**
@@ -366,8 +764,8 @@ class Runtime {
         int stop = shorter ? end : begin;
 
 
-        d = new Dfa(this, t.left.machine);
-        d2 = new Dfa(this, t.right.machine);
+        d = dfa(t.left.machine);
+        d2 = dfa(t.right.machine);
 
     /* pick a tentative midpoint */
         if (shorter) {
@@ -415,7 +813,7 @@ class Runtime {
 
         for (; t != null; t = t.right) {
             assert t.left != null && t.left.machine.states.length > 0;
-            d = new Dfa(this, t.left.machine);
+            d = dfa(t.left.machine);
             if (d.longest(begin, end, null) == end) {
                 return dissect(t.left, begin, end);
             }
@@ -482,8 +880,8 @@ class Runtime {
             return crevdissect(t, begin, end);
         }
 
-        d = new Dfa(this, t.left.machine);
-        d2 = new Dfa(this, t.right.machine);
+        d = dfa(t.left.machine);
+        d2 = dfa(t.right.machine);
 
     /* pick a tentative midpoint */
         if (mem[t.retry] == 0) {
@@ -527,9 +925,7 @@ class Runtime {
 
     private void zapmem(RuntimeSubexpression t) {
         mem[t.retry] = 0;
-        while (match.size() < t.number + 1) {
-            match.add(null);
-        }
+        nmatch = Math.max(nmatch, t.number + 1);
         if (t.left != null) {
             zapmem(t.left);
         }
@@ -555,8 +951,8 @@ class Runtime {
         assert 0 != (t.left.flags & Subre.SHORTER);
 
     /* concatenation -- need to split the substring between parts */
-        d = new Dfa(this, t.left.machine);
-        d2 = new Dfa(this, t.right.machine);
+        d = dfa(t.left.machine);
+        d2 = dfa(t.right.machine);
 
     /* pick a tentative midpoint */
         if (mem[t.retry] == 0) {
@@ -615,12 +1011,11 @@ class Runtime {
         assert t.op == 'b';
         assert n >= 0;
 
-        //TODO: could this get be out of range?
-        if (match.get(n) == null) {
+        if (n >= nmatch || match[2 * n] == -1) {
             return false;
         }
-        paren = match.get(n).start;
-        len = match.get(n).end - match.get(n).start;
+        paren = match[2 * n];
+        len = match[2 * n + 1] - paren;
 
     /* no room to maneuver -- retries are pointless */
         if (0 != mem[t.retry]) {
@@ -645,7 +1040,7 @@ class Runtime {
         for (p = begin; p <= stop && (i < max || max == Compiler.INFINITY); p += len) {
             // paren is index of
 
-            if (g.compare.compare(data, paren, p, len) != 0) {
+            if (compare(paren, p, len) != 0) {
                 break;
             }
             i++;
@@ -658,6 +1053,25 @@ class Runtime {
         return min <= i && (i <= max || max == Compiler.INFINITY);
     }
 
+    /**
+     * Compare two stretches of the data for a back-reference. The comparator works on chars;
+     * for UTF-8, decoding is no great expense next to the rest of what back-references cost.
+     */
+    private int compare(int start1, int start2, int length) {
+        if (bytes == null) {
+            if (view == null) {
+                view = CharBuffer.wrap(chars);
+            }
+            return g.compare.compare(view, start1, start2, length);
+        }
+        String first = Utf8.decode(bytes, start1, start1 + length);
+        String second = Utf8.decode(bytes, start2, start2 + length);
+        if (first.length() != second.length()) {
+            return first.length() - second.length();
+        }
+        return g.compare.compare(first + second, 0, first.length(), first.length());
+    }
+
     /*
      - caltdissect - determine alternative subexpression matches (w. complications)
      ^ static int caltdissect(struct vars *, struct Subre , int , int );
@@ -673,7 +1087,7 @@ class Runtime {
         }
 
         if (mem[t.retry] == UNTRIED) {
-            d = new Dfa(this, t.left.machine);
+            d = dfa(t.left.machine);
             if (d.longest(begin, end, null) != end) {
                 mem[t.retry] = TRIED;
                 return caltdissect(t.right, begin, end);
@@ -17,6 +17,8 @@
 package com.basistech.tclre;
 
 import com.google.common.collect.BoundType;
+import com.google.common.collect.Interner;
+import com.google.common.collect.Interners;
 import com.google.common.collect.Range;
 import com.google.common.collect.RangeMap;
 import com.google.common.collect.TreeRangeMap;
@@ -25,6 +27,7 @@ import java.io.IOException;
 import java.io.ObjectOutputStream;
 import java.io.Serializable;
 import java.lang.reflect.Field;
+import java.util.Arrays;
 import java.util.Map;
 import java.util.Set;
 
@@ -32,13 +35,27 @@ import java.util.Set;
  * Immutable, sharable, color map.
  * The ColorMap data structure is a fully-populated map from all possible char values to shorts,
  * represented in a complex way.
- * This just uses the obvious array of 2^16 shorts. If we wanted to trade space for time,
- * we could use an Short2ShortOpenHashMap instead.
+ * For the BMP, this uses a table of 2^16 shorts, cut into pages of 256. Most of the pages of most
+ * maps are all one color, or are otherwise just like the pages of other maps, so the pages
+ * are interned, and maps with the same page share one copy of it. Beyond the BMP, there are few ranges,
+ * so a binary search of the codepoints where they start does the job; that keeps range map lookups,
+ * with their boxing, out of matching.
   */
 class RuntimeColorMap implements Serializable {
     static final long serialVersionUID = 2L;
-    /* for the BMP, we have this array */
-    private final transient short[] bmpMap;
+    private static final int PAGE_BITS = 8;
+    private static final int PAGE_SIZE = 1 << PAGE_BITS;
+    private static final int PAGE_MASK = PAGE_SIZE - 1;
+    private static final int NPAGES = (Character.MAX_VALUE + 1) >> PAGE_BITS;
+    /* the pages in use by any map; weak, so that a page goes when the last map that uses it does. */
+    private static final Interner<Page> PAGES = Interners.newWeakInterner();
+    /* for the BMP: the color of c is bmpPages[c >> PAGE_BITS][c & PAGE_MASK] */
+    final transient short[][] bmpPages;
+    /* the interned pages, which keep their entries in PAGES alive for as long as this is */
+    private final transient Page[] pages;
+    /* supplementary codepoints from supplementaryStarts[x] on have the color supplementaryColors[x] */
+    private final transient int[] supplementaryStarts;
+    private final transient short[] supplementaryColors;
     private final RangeMap<Integer, Short> fullMap;
 
     /**
@@ -48,28 +65,80 @@ class RuntimeColorMap implements Serializable {
      */
     RuntimeColorMap(RangeMap<Integer, Short> fullMap) {
         this.fullMap = fullMap;
-        this.bmpMap = new short[Character.MAX_VALUE + 1];
-        computeBmp(fullMap);
+        this.bmpPages = new short[NPAGES][];
+        this.pages = new Page[NPAGES];
+        int nsupplementary = countSupplementary(fullMap);
+        this.supplementaryStarts = new int[nsupplementary];
+        this.supplementaryColors = new short[nsupplementary];
+        computeTables(fullMap);
     }
 
-    private void computeBmp(RangeMap<Integer, Short> fullMap) {
+    private static int countSupplementary(RangeMap<Integer, Short> fullMap) {
+        int count = 0;
+        for (Range<Integer> range : fullMap.asMapOfRanges().keySet()) {
+            int rmax = range.upperEndpoint();
+            if (range.upperBoundType() == BoundType.OPEN) {
+                rmax--;
+            }
+            if (rmax >= Character.MIN_SUPPLEMENTARY_CODE_POINT) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private void computeTables(RangeMap<Integer, Short> fullMap) {
+        // the ranges come in order, so the pages fill up one after another; any gap is color 0.
+        short[] page = new short[PAGE_SIZE];
+        int next = 0; // the first char not yet in a page
+        int s = 0;
         for (Map.Entry<Range<Integer>, Short> me : fullMap.asMapOfRanges().entrySet()) {
             Range<Integer> range = me.getKey();
             int min = range.lowerEndpoint();
             if (range.lowerBoundType() == BoundType.OPEN) {
                 min++;
             }
-            if (min < Character.MAX_VALUE) {
-                int rmax = range.upperEndpoint();
-                if (range.upperBoundType() == BoundType.OPEN) {
-                    rmax--;
-                }
+            int rmax = range.upperEndpoint();
+            if (range.upperBoundType() == BoundType.OPEN) {
+                rmax--;
+            }
+            if (min <= Character.MAX_VALUE) {
                 int max = Math.min(Character.MAX_VALUE, rmax);
-                for (int x = min; x <= max; x++) {
-                    this.bmpMap[x] = me.getValue();
+                page = fill(page, next, min - 1, (short) 0);
+                page = fill(page, min, max, me.getValue());
+                next = max + 1;
+            }
+            if (rmax >= Character.MIN_SUPPLEMENTARY_CODE_POINT) {
+                supplementaryStarts[s] = Math.max(min, Character.MIN_SUPPLEMENTARY_CODE_POINT);
+                supplementaryColors[s] = me.getValue();
+                s++;
+            }
+        }
+        fill(page, next, Character.MAX_VALUE, (short) 0);
+    }
+
+    /*
+     * Give the chars from 'from' through 'to' a color, in 'page', which holds the page that they start in;
+     * each page that fills up is interned.
+     * @return the array for the rest of the page, or for the next page.
+     */
+    private short[] fill(short[] page, int from, int to, short color) {
+        for (int c = from; c <= to;) {
+            int end = Math.min(to, c | PAGE_MASK);
+            Arrays.fill(page, c & PAGE_MASK, (end & PAGE_MASK) + 1, color);
+            if ((end & PAGE_MASK) == PAGE_MASK) {
+                Page candidate = new Page(page);
+                Page interned = PAGES.intern(candidate);
+                pages[end >> PAGE_BITS] = interned;
+                bmpPages[end >> PAGE_BITS] = interned.colors;
+                // a page that another map already had leaves this array free to use again.
+                if (interned == candidate) {
+                    page = new short[PAGE_SIZE];
                 }
             }
+            c = end + 1;
         }
+        return page;
     }
 
     /**
@@ -78,7 +147,7 @@ class RuntimeColorMap implements Serializable {
      * @return the color
      */
     short getcolor(char c) {
-        return bmpMap[c];
+        return bmpPages[c >> PAGE_BITS][c & PAGE_MASK];
     }
 
     /**
@@ -87,11 +156,40 @@ class RuntimeColorMap implements Serializable {
      * @return
      */
     short getcolor(int codepoint) {
-        try {
-            return fullMap.get(codepoint);
-        } catch (NullPointerException npe) {
+        if (codepoint <= Character.MAX_VALUE) {
+            return bmpPages[codepoint >> PAGE_BITS][codepoint & PAGE_MASK];
+        }
+        int x = Arrays.binarySearch(supplementaryStarts, codepoint);
+        if (x == -1 || codepoint > Character.MAX_CODE_POINT) {
             throw new RuntimeException(String.format(" CP %08x no mapping", codepoint));
         }
+        return supplementaryColors[x >= 0 ? x : -x - 2];
+    }
+
+    /**
+     * @return the ranges of codepoints that have a single color; together, they cover everything.
+     */
+    Set<Range<Integer>> ranges() {
+        return fullMap.asMapOfRanges().keySet();
+    }
+
+    /**
+     * @return the codepoint of a color that has just one, or -1 if it has none or several.
+     */
+    int singleton(short color) {
+        int found = -1;
+        for (Map.Entry<Range<Integer>, Short> me : fullMap.asMapOfRanges().entrySet()) {
+            if (me.getValue() == color) {
+                Range<Integer> range = me.getKey();
+                int min = range.lowerBoundType() == BoundType.OPEN ? range.lowerEndpoint() + 1 : range.lowerEndpoint();
+                int max = range.upperBoundType() == BoundType.OPEN ? range.upperEndpoint() - 1 : range.upperEndpoint();
+                if (found != -1 || min != max) {
+                    return -1;
+                }
+                found = min;
+            }
+        }
+        return found;
     }
 
     private void writeObject(ObjectOutputStream stream) throws IOException {
@@ -107,9 +205,12 @@ class RuntimeColorMap implements Serializable {
     @SuppressWarnings("unchecked")
     private void readObject(java.io.ObjectInputStream in) throws IOException, ClassNotFoundException {
         try {
-            Field dataField = RuntimeColorMap.class.getDeclaredField("bmpMap");
+            Field dataField = RuntimeColorMap.class.getDeclaredField("bmpPages");
+            dataField.setAccessible(true);
+            dataField.set(this, new short[NPAGES][]);
+            dataField = RuntimeColorMap.class.getDeclaredField("pages");
             dataField.setAccessible(true);
-            dataField.set(this, new short[Character.MAX_VALUE + 1]);
+            dataField.set(this, new Page[NPAGES]);
             dataField = RuntimeColorMap.class.getDeclaredField("fullMap");
             dataField.setAccessible(true);
             dataField.set(this, TreeRangeMap.create());
@@ -124,6 +225,42 @@ class RuntimeColorMap implements Serializable {
             short v = in.readShort();
             fullMap.put(k, v);
         }
-        computeBmp(fullMap);
+        int nsupplementary = countSupplementary(fullMap);
+        try {
+            Field dataField = RuntimeColorMap.class.getDeclaredField("supplementaryStarts");
+            dataField.setAccessible(true);
+            dataField.set(this, new int[nsupplementary]);
+            dataField = RuntimeColorMap.class.getDeclaredField("supplementaryColors");
+            dataField.setAccessible(true);
+            dataField.set(this, new short[nsupplementary]);
+        } catch (NoSuchFieldException e) {
+            throw new RuntimeException(e);
+        } catch (IllegalAccessException e) {
+            throw new RuntimeException(e);
+        }
+        computeTables(fullMap);
+    }
+
+    /**
+     * A page of the BMP table, with equality by content, for interning.
+     */
+    private static final class Page {
+        final short[] colors;
+        private final int hash;
+
+        Page(short[] colors) {
+            this.colors = colors;
+            this.hash = Arrays.hashCode(colors);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Page && hash == ((Page) o).hash && Arrays.equals(colors, ((Page) o).colors);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
     }
 }
@@ -44,6 +44,19 @@ final class RuntimeSubexpression implements Serializable {
         this.max = 0;
     }
 
+    RuntimeSubexpression(int number, Cnfa machine, char op, RuntimeSubexpression left, RuntimeSubexpression right,
+                         int flags, int retry, int min, int max) {
+        this.number = number;
+        this.machine = machine;
+        this.op = op;
+        this.left = left;
+        this.right = right;
+        this.flags = flags;
+        this.retry = retry;
+        this.min = min;
+        this.max = max;
+    }
+
     RuntimeSubexpression(Subre re) {
         this.number = re.subno;
         this.op = re.op;
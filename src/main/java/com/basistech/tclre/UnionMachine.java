@@ -0,0 +1,311 @@
+/*
+* Copyright 2014 Basis Technology Corp.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package com.basistech.tclre;
+
+import com.google.common.collect.BoundType;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Range;
+import com.google.common.collect.Sets;
+
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+
+/**
+ * The union of the main machines of several patterns, run as one DFA, so that one pass
+ * over the data finds out which of the patterns have a match.
+ * <p>
+ * Each pattern has its own colors, so the union runs on combined colors: two codepoints
+ * have the same combined color if every pattern gives them the same color. Likewise for
+ * the BOS, BOL, EOS and EOL pseudocolors. The states of the machines are numbered one after
+ * another, so a state set can hold states of all of them, and a step on a combined color follows
+ * the arcs of each machine for that machine's own color. The post state of each machine is its
+ * own state, so an accepting state set says which patterns have matched.
+ * </p>
+ * <p>
+ * The machines are anchored; one loop in front of all of them, shared, lets a match start anywhere.
+ * After every step, the pre state of every machine is in the state set again, as with {@link Cnfa#unanchored}.
+ * The search machines would do the same job, each with its own loop, but the loops at their ends
+ * keep a machine that has matched in every state set from then on; with many patterns, the state sets
+ * would multiply by each combination of patterns seen so far. Here, once a machine's match is over, its
+ * states die out, and the scan remembers that it matched.
+ * Reaching the post state of a machine means that its pattern has a match; not where it is.
+ * Machines with lookahead constraints can't be run like this, since those depend on the data.
+ * </p>
+ */
+class UnionMachine implements Serializable {
+    static final long serialVersionUID = 1L;
+    static final String MAX_BYTES_PROPERTY = "tclre.patternSetCacheBytes";
+    /* cap on the estimated memory used by the state sets of one union; they are much bigger than for one pattern. */
+    static final long MAX_BYTES = Long.getLong(MAX_BYTES_PROPERTY, 64L * 1024 * 1024);
+    /* indices into the special colors; BOL and EOL are what a match uses without REG_NOTBOL and REG_NOTEOL. */
+    private static final int BOL = 1;
+    private static final int EOL = 3;
+
+    private final Cnfa[] machines;
+    private final int[] offsets; // the number of the first state of each machine
+    private final int[] owners; // the machine of each state
+    private final long[] posts; // the post states of all the machines
+    private final long[] pres; // the pre states of all the machines; the initial state set, and the shared loop
+    private final int ncolors;
+    private final int[] bmp; // the combined color of each BMP char
+    private final int[] starts; // supplementary codepoints from starts[x] on have combined color supplementary[x]
+    private final int[] supplementary;
+    private final int[] special; // the combined colors of BOS, BOL, EOS, EOL
+    private final short[][] colors; // colors[m][co] is machine m's color for combined color co
+    private transient volatile DfaCache cache;
+
+    /**
+     * @param machines the main machines, none of which may have lookahead constraints.
+     * @param maps the color map of each machine.
+     */
+    UnionMachine(List<Cnfa> machines, List<RuntimeColorMap> maps) {
+        int n = machines.size();
+        this.machines = machines.toArray(new Cnfa[n]);
+        offsets = new int[n];
+        int nstates = 0;
+        for (int m = 0; m < n; m++) {
+            assert !this.machines[m].hasLacons;
+            offsets[m] = nstates;
+            nstates += this.machines[m].states.length;
+        }
+        owners = new int[nstates];
+        posts = new long[DfaCache.words(nstates)];
+        pres = new long[posts.length];
+        for (int m = 0; m < n; m++) {
+            Arrays.fill(owners, offsets[m], offsets[m] + this.machines[m].states.length, m);
+            int post = offsets[m] + this.machines[m].post;
+            posts[post >>> 6] |= 1L << post;
+            int pre = offsets[m] + this.machines[m].pre;
+            pres[pre >>> 6] |= 1L << pre;
+        }
+
+        // every codepoint where some map changes color; each starts a run of one combined color.
+        TreeSet<Integer> boundaries = Sets.newTreeSet();
+        boundaries.add(0);
+        boundaries.add(Character.MIN_SUPPLEMENTARY_CODE_POINT);
+        for (RuntimeColorMap map : maps) {
+            for (Range<Integer> range : map.ranges()) {
+                if (range.hasLowerBound()) {
+                    boundaries.add(range.lowerBoundType() == BoundType.OPEN
+                            ? range.lowerEndpoint() + 1 : range.lowerEndpoint());
+                }
+                if (range.hasUpperBound()) {
+                    int after = range.upperBoundType() == BoundType.OPEN
+                            ? range.upperEndpoint() : range.upperEndpoint() + 1;
+                    if (after <= Character.MAX_CODE_POINT) {
+                        boundaries.add(after);
+                    }
+                }
+            }
+        }
+        int npoints = boundaries.size();
+        int[] points = new int[npoints];
+        int x = 0;
+        for (int point : boundaries) {
+            points[x++] = point;
+        }
+
+        // refine the partition one machine at a time; the last four entries are the pseudocolors.
+        int[] combined = new int[npoints + 4];
+        int count = 1;
+        for (int m = 0; m < n; m++) {
+            Map<Long, Integer> refined = Maps.newHashMap();
+            for (int p = 0; p < combined.length; p++) {
+                short color = p < npoints ? maps.get(m).getcolor(points[p]) : pseudocolor(m, p - npoints);
+                Long key = ((long) combined[p] << 16) | (color & 0xffff);
+                Integer co = refined.get(key);
+                if (co == null) {
+                    co = refined.size();
+                    refined.put(key, co);
+                }
+                combined[p] = co;
+            }
+            count = refined.size();
+        }
+        ncolors = count;
+
+        bmp = new int[Character.MAX_VALUE + 1];
+        int nsupplementary = npoints - boundaries.headSet(Character.MIN_SUPPLEMENTARY_CODE_POINT).size();
+        starts = new int[nsupplementary];
+        supplementary = new int[nsupplementary];
+        int s = 0;
+        for (int p = 0; p < npoints; p++) {
+            if (points[p] < Character.MIN_SUPPLEMENTARY_CODE_POINT) {
+                int end = Math.min(p + 1 < npoints ? points[p + 1] : Integer.MAX_VALUE, Character.MAX_VALUE + 1);
+                Arrays.fill(bmp, points[p], end, combined[p]);
+            } else {
+                starts[s] = points[p];
+                supplementary[s] = combined[p];
+                s++;
+            }
+        }
+        special = Arrays.copyOfRange(combined, npoints, npoints + 4);
+
+        colors = new short[n][ncolors];
+        for (int m = 0; m < n; m++) {
+            for (int p = 0; p < combined.length; p++) {
+                colors[m][combined[p]] = p < npoints ? maps.get(m).getcolor(points[p]) : pseudocolor(m, p - npoints);
+            }
+        }
+    }
+
+    private short pseudocolor(int m, int which) {
+        return which < 2 ? machines[m].bos[which] : machines[m].eos[which - 2];
+    }
+
+    /**
+     * @return the number of machines.
+     */
+    int size() {
+        return machines.length;
+    }
+
+    /**
+     * @return the number of combined colors.
+     */
+    int ncolors() {
+        return ncolors;
+    }
+
+    int color(int codepoint) {
+        if (codepoint <= Character.MAX_VALUE) {
+            return bmp[codepoint];
+        }
+        int x = Arrays.binarySearch(starts, codepoint);
+        return supplementary[x >= 0 ? x : -x - 2];
+    }
+
+    DfaCache cache() {
+        DfaCache result = cache;
+        if (result == null) {
+            synchronized (this) {
+                result = cache;
+                if (result == null) {
+                    result = new DfaCache(posts.length, ncolors, pres, MAX_BYTES);
+                    cache = result;
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * The union's version of {@link Dfa#step}: follow each machine's arcs for its color of 'co',
+     * and then take the shared loop back to all the pre states.
+     *
+     * @return a combination of {@link Dfa#STEP_GOT} and {@link Dfa#STEP_POST}.
+     */
+    private int step(long[] states, int co, long[] work) {
+        int result = Dfa.STEP_GOT;
+        for (int wx = 0; wx < states.length; wx++) {
+            for (long bits = states[wx]; bits != 0; bits &= bits - 1) {
+                int i = (wx << 6) + Long.numberOfTrailingZeros(bits);
+                int m = owners[i];
+                Cnfa cnfa = machines[m];
+                int base = offsets[m];
+                short color = colors[m][co];
+                for (int ax = cnfa.states[i - base] + 1;; ax++) {
+                    long ca = cnfa.arcs[ax];
+                    short caco = Cnfa.carcColor(ca);
+                    if (caco == Constants.COLORLESS) {
+                        break;
+                    }
+                    if (caco == color) {
+                        int catarget = Cnfa.carcTarget(ca);
+                        int target = base + catarget;
+                        work[target >>> 6] |= 1L << target;
+                        if (catarget == cnfa.post) {
+                            result |= Dfa.STEP_POST;
+                        }
+                    }
+                }
+            }
+        }
+        for (int wx = 0; wx < work.length; wx++) {
+            work[wx] |= pres[wx];
+        }
+        return result;
+    }
+
+    /**
+     * Run the union over some data.
+     *
+     * @param chars the data, as from {@link Runtime#chars}.
+     * @param length how much of it there is.
+     * @return the machines that reached their post states.
+     */
+    BitSet scan(char[] chars, int length) {
+        Scan scan = new Scan();
+        int css = scan.step(DfaCache.INITIAL, special[BOL]);
+        int cp = 0;
+        while (cp < length && scan.remaining > 0) {
+            char theChar = chars[cp];
+            int co;
+            if (Character.isHighSurrogate(theChar) && cp + 1 < length && Character.isLowSurrogate(chars[cp + 1])) {
+                co = color(Character.toCodePoint(theChar, chars[cp + 1]));
+                cp += 2;
+            } else {
+                co = bmp[theChar];
+                cp++;
+            }
+            css = scan.step(css, co);
+        }
+        if (scan.remaining > 0) {
+            scan.step(css, special[EOL]);
+        }
+        return scan.matched;
+    }
+
+    /**
+     * The state of one scan; as with a {@link Dfa}, the state sets themselves are shared.
+     */
+    private final class Scan {
+        final DfaCache cache = cache();
+        final long[] work = new long[posts.length];
+        final int[] target = new int[1];
+        final BitSet matched = new BitSet(machines.length);
+        DfaCache.Table table = cache.table();
+        int remaining = machines.length;
+
+        int step(int css, int co) {
+            int ss = DfaCache.next(table.trans, css * ncolors + co);
+            if (ss == DfaCache.UNKNOWN) {
+                Arrays.fill(work, 0L);
+                int stepped = UnionMachine.this.step(table.states[css], co, work);
+                table = cache.transition(table, css, co, work, 0 != (stepped & Dfa.STEP_POST), false, true, target);
+                ss = target[0];
+            }
+            if (DfaCache.bit(table.post, ss)) {
+                long[] states = table.states[ss];
+                for (int wx = 0; wx < states.length; wx++) {
+                    for (long bits = states[wx] & posts[wx]; bits != 0; bits &= bits - 1) {
+                        int m = owners[(wx << 6) + Long.numberOfTrailingZeros(bits)];
+                        if (!matched.get(m)) {
+                            matched.set(m);
+                            remaining--;
+                        }
+                    }
+                }
+            }
+            return ss;
+        }
+    }
+}
@@ -0,0 +1,122 @@
+/*
+* Copyright 2014 Basis Technology Corp.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package com.basistech.tclre;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Decoding UTF-8 in place, one codepoint at a time, for matching over bytes.
+ * Offsets are absolute indices in a buffer. This is lenient: a byte that doesn't start
+ * a well-formed sequence counts as one codepoint, U+FFFD.
+ */
+final class Utf8 {
+    static final int REPLACEMENT = 0xfffd;
+
+    private Utf8() {
+        //
+    }
+
+    /**
+     * @return the length of the sequence at 'x', which has to end by 'end'; 1 for a malformed one.
+     *         A sequence is well-formed as the Unicode standard has it (table 3-7): no overlong forms,
+     *         no surrogates, and nothing past U+10FFFF.
+     */
+    static int length(ByteBuffer bytes, int x, int end) {
+        int lead = bytes.get(x) & 0xff;
+        int length;
+        int secondMin = 0x80;
+        int secondMax = 0xbf;
+        if (lead < 0x80) {
+            return 1;
+        } else if (lead < 0xc2) {
+            return 1; // a continuation byte, or the lead byte of an overlong form
+        } else if (lead < 0xe0) {
+            length = 2;
+        } else if (lead < 0xf0) {
+            length = 3;
+            if (lead == 0xe0) {
+                secondMin = 0xa0;
+            } else if (lead == 0xed) {
+                secondMax = 0x9f;
+            }
+        } else if (lead < 0xf5) {
+            length = 4;
+            if (lead == 0xf0) {
+                secondMin = 0x90;
+            } else if (lead == 0xf4) {
+                secondMax = 0x8f;
+            }
+        } else {
+            return 1;
+        }
+        if (x + length > end) {
+            return 1;
+        }
+        int second = bytes.get(x + 1) & 0xff;
+        if (second < secondMin || second > secondMax) {
+            return 1;
+        }
+        for (int y = x + 2; y < x + length; y++) {
+            if ((bytes.get(y) & 0xc0) != 0x80) {
+                return 1;
+            }
+        }
+        return length;
+    }
+
+    /**
+     * @param length the length of the sequence, from {@link #length}.
+     * @return the codepoint at 'x'.
+     */
+    static int codePointAt(ByteBuffer bytes, int x, int length) {
+        int lead = bytes.get(x);
+        switch (length) {
+        case 1:
+            return lead >= 0 ? lead : REPLACEMENT;
+        case 2:
+            return (lead & 0x1f) << 6 | bytes.get(x + 1) & 0x3f;
+        case 3:
+            return (lead & 0x0f) << 12 | (bytes.get(x + 1) & 0x3f) << 6 | bytes.get(x + 2) & 0x3f;
+        default:
+            return (lead & 0x07) << 18 | (bytes.get(x + 1) & 0x3f) << 12
+                    | (bytes.get(x + 2) & 0x3f) << 6 | bytes.get(x + 3) & 0x3f;
+        }
+    }
+
+    /**
+     * @return the start of the codepoint that ends at 'x', going back no further than 'start'.
+     */
+    static int previous(ByteBuffer bytes, int x, int start) {
+        int y = x - 1;
+        while (y > start && x - y < 4 && (bytes.get(y) & 0xc0) == 0x80) {
+            y--;
+        }
+        return length(bytes, y, x) == x - y ? y : x - 1;
+    }
+
+    /**
+     * @return the text of the bytes from 'start' to 'end'.
+     */
+    static String decode(ByteBuffer bytes, int start, int end) {
+        byte[] copy = new byte[end - start];
+        ByteBuffer from = bytes.duplicate();
+        from.position(start);
+        from.get(copy);
+        return new String(copy, StandardCharsets.UTF_8);
+    }
+}
@@ -64,6 +64,47 @@ public class MatcherTest extends Assert {
         assertEquals(0, matcher.start());
     }
 
+    @Test
+    public void noMatch() throws Exception {
+        ReMatcher matcher = HsrePattern.compile("(a)", PatternFlags.ADVANCED).matcher("xa");
+        assertTrue(matcher.find());
+        assertEquals(1, matcher.start());
+        matcher.reset();
+        checkNoMatch(matcher);
+
+        assertTrue(matcher.find());
+        assertEquals(2, matcher.end());
+        assertFalse(matcher.find());
+        checkNoMatch(matcher);
+
+        assertTrue(matcher.find(0));
+        matcher.region(1, 2);
+        checkNoMatch(matcher);
+        assertTrue(matcher.test());
+        checkNoMatch(matcher);
+    }
+
+    private static void checkNoMatch(ReMatcher matcher) {
+        try {
+            matcher.start();
+            fail("start() without a match");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+        try {
+            matcher.end();
+            fail("end() without a match");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+        try {
+            matcher.group(1);
+            fail("group(1) without a match");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+    }
+
     @Test
     public void ranges() throws Exception {
         RePattern pattern = HsrePattern.compile("a");
@@ -212,4 +253,47 @@ public class MatcherTest extends Assert {
         matcher.reset(new String("管辖，公司".toCharArray(), 0, 5)).region(0, 5).matches();
     }
 
+    @Test
+    public void contextBeforeFindOffset() throws Exception {
+        // the data before where a find starts is still there; only the region start is BOS.
+        ReMatcher matcher = HsrePattern.compile("^a").matcher("aa");
+        assertTrue(matcher.find());
+        assertEquals(0, matcher.start());
+        assertFalse(matcher.find());
+        assertFalse(matcher.find(1));
+
+        matcher = HsrePattern.compile("\\mfoo", PatternFlags.ADVANCED).matcher("foofoo foo");
+        assertTrue(matcher.find());
+        assertEquals(0, matcher.start());
+        assertTrue(matcher.find());
+        assertEquals(7, matcher.start());
+
+        matcher.region(3, 10);
+        assertTrue(matcher.find());
+        assertEquals(3, matcher.start());
+        assertEquals(6, matcher.end());
+    }
+
+    @Test
+    public void test() throws Exception {
+        String[] exps = {"b+c", "(a|b)c\\M", "(\\w)\\1", "foo(?=bar)", "^foo", "x"};
+        String[] docs = {"abbc", "foobaz foobar", "bc aac", "xfoo", ""};
+        for (String exp : exps) {
+            RePattern pattern = HsrePattern.compile(exp, PatternFlags.ADVANCED);
+            for (String doc : docs) {
+                assertEquals(exp + " " + doc, pattern.matcher(doc).find(), pattern.matcher(doc).test());
+            }
+        }
+
+        ReMatcher matcher = HsrePattern.compile("^foo", PatternFlags.ADVANCED).matcher("xfoo foo");
+        assertFalse(matcher.test());
+        matcher.region(1, 8);
+        assertTrue(matcher.test());
+        // test() leaves the next find at the start of the region.
+        assertTrue(matcher.find());
+        assertEquals(1, matcher.start());
+        assertTrue(matcher.test());
+        assertTrue(matcher.find());
+        assertEquals(1, matcher.start());
+    }
 }
@@ -0,0 +1,144 @@
+/*
+* Copyright 2014 Basis Technology Corp.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package apitests;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.SortedMap;
+
+import com.basistech.tclre.HsrePattern;
+import com.basistech.tclre.HsrePatternSet;
+import com.basistech.tclre.PatternFlags;
+import com.basistech.tclre.ReMatcher;
+import com.basistech.tclre.RePattern;
+import com.basistech.tclre.RePatternSet;
+import com.google.common.collect.Lists;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests of RePatternSet; it has to agree with the patterns, one at a time.
+ */
+public class PatternSetTest extends Assert {
+    private static final List<String> PATTERNS = Arrays.asList(
+            "error\\s+code=\\d+",
+            "^Subject:",
+            "\\mparis\\M|\\mlondon\\M",
+            "colou?r$",
+            "(\\w)\\1",             // back-reference
+            "foo(?=bar)",           // lookahead
+            "[\\U00010380-\\U0001039F]+",
+            "x{3,}",
+            "a*"                     // matches everywhere
+    );
+
+    private static final List<String> DOCS = Arrays.asList(
+            "Subject: nothing\nerror  code=42",
+            "error code= none, London and PARIS, colour",
+            "foobaz foobar xx",
+            "𐎀𐎁 xxx",
+            "",
+            "book-keeper's color"
+    );
+
+    private static BitSet oneAtATime(List<RePattern> patterns, String doc) {
+        BitSet result = new BitSet();
+        for (int x = 0; x < patterns.size(); x++) {
+            if (patterns.get(x).matcher(doc).find()) {
+                result.set(x);
+            }
+        }
+        return result;
+    }
+
+    @Test
+    public void agrees() throws Exception {
+        RePatternSet set = HsrePatternSet.compile(PATTERNS, PatternFlags.ADVANCED);
+        assertEquals(PATTERNS.size(), set.size());
+        List<RePattern> patterns = Lists.newArrayList();
+        for (int x = 0; x < set.size(); x++) {
+            patterns.add(set.pattern(x));
+        }
+        for (String doc : DOCS) {
+            BitSet expected = oneAtATime(patterns, doc);
+            assertEquals(doc, expected, set.matching(doc));
+            SortedMap<Integer, ReMatcher> found = set.find(doc);
+            assertEquals(doc, expected.cardinality(), found.size());
+            for (int x : found.keySet()) {
+                ReMatcher one = patterns.get(x).matcher(doc);
+                assertTrue(one.find());
+                assertEquals(one.start(), found.get(x).start());
+                assertEquals(one.end(), found.get(x).end());
+            }
+        }
+    }
+
+    @Test
+    public void mixedFlags() throws Exception {
+        List<RePattern> patterns = Lists.newArrayList();
+        patterns.add(HsrePattern.compile("PARIS", PatternFlags.ADVANCED, PatternFlags.ICASE));
+        patterns.add(HsrePattern.compile("PARIS", PatternFlags.ADVANCED));
+        patterns.add(HsrePattern.compile("^london", PatternFlags.ADVANCED, PatternFlags.NLANCH));
+        patterns.add(HsrePattern.compile("^london", PatternFlags.ADVANCED));
+        RePatternSet set = HsrePatternSet.of(patterns);
+        String doc = "to paris\nlondon";
+        assertEquals(oneAtATime(patterns, doc), set.matching(doc));
+        BitSet expected = new BitSet();
+        expected.set(0);
+        expected.set(2);
+        assertEquals(expected, set.matching(doc));
+    }
+
+    @Test
+    public void many() throws Exception {
+        List<String> exps = Lists.newArrayList();
+        for (int x = 0; x < 500; x++) {
+            exps.add(String.format("\\mw%03d[a-f]?\\M", x));
+        }
+        RePatternSet set = HsrePatternSet.compile(exps, PatternFlags.ADVANCED);
+        BitSet expected = new BitSet();
+        expected.set(7);
+        expected.set(123);
+        expected.set(499);
+        assertEquals(expected, set.matching("w007 and w123f and w499 but not w12 or w4999 or w500"));
+    }
+
+    @Test(timeout = 10000)
+    public void overlapping() throws Exception {
+        // many patterns live at once, and over supplementary characters
+        List<String> exps = Lists.newArrayList();
+        for (int x = 0; x < 40; x++) {
+            exps.add(String.format("k%02d.*z%02d|\\U00010380[a-z]{%d}\\M", x, x, x + 1));
+        }
+        RePatternSet set = HsrePatternSet.compile(exps, PatternFlags.ADVANCED);
+        List<RePattern> patterns = Lists.newArrayList();
+        for (int x = 0; x < set.size(); x++) {
+            patterns.add(set.pattern(x));
+        }
+        StringBuilder doc = new StringBuilder();
+        for (int x = 0; x < 2000; x++) {
+            doc.append(String.format("k%02d %s z%02d ", (x * 7) % 40, "\uD800\uDF80abcdefghijklmnopq".substring(0, 2 + x % 12), (x * 13) % 20));
+        }
+        String text = doc.toString();
+        BitSet expected = oneAtATime(patterns, text);
+        assertEquals(20, expected.cardinality());
+        assertEquals(expected, set.matching(text));
+        assertEquals(expected.cardinality(), set.find(text).size());
+    }
+}
@@ -0,0 +1,169 @@
+/*
+* Copyright 2014 Basis Technology Corp.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package apitests;
+
+import java.util.Arrays;
+import java.util.List;
+
+import com.basistech.tclre.HsrePattern;
+import com.basistech.tclre.PatternFlags;
+import com.basistech.tclre.ReMatcher;
+import com.basistech.tclre.RePattern;
+import com.basistech.tclre.ReStreamMatcher;
+import com.google.common.collect.Lists;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * A stream matcher has to find what a matcher over all of the data does, however the data is split up.
+ */
+public class StreamMatcherTest extends Assert {
+    private static final List<String> PATTERNS = Arrays.asList(
+            "\\mparis\\M",
+            "error\\s+code=(\\d+)",
+            "(\\w)\\1",
+            "foo(?=bar)",
+            "[\\U00010380-\\U0001039F]+",
+            "^\\w+|\\w+$",
+            "a*",
+            "x{3,}(y)?"
+    );
+    private static final String DATA = "paris, Paris and parisian: error  code=42 xxxxy 𐎀𐎁𐎂 foobar foo aab paris";
+
+    private static List<String> expected(RePattern pattern) {
+        List<String> result = Lists.newArrayList();
+        ReMatcher matcher = pattern.matcher(DATA);
+        int from = 0;
+        while (from <= DATA.length() && matcher.find(from)) {
+            result.add(matcher.start() + ":" + matcher.end() + ":" + matcher.group());
+            // find() would find an empty match again.
+            from = matcher.end() > matcher.start() ? matcher.end()
+                    : matcher.end() + (matcher.end() < DATA.length() ? Character.charCount(DATA.codePointAt(matcher.end())) : 1);
+        }
+        return result;
+    }
+
+    private static List<String> streamed(ReStreamMatcher matcher, int chunkSize) {
+        List<ReStreamMatcher.Match> matches = Lists.newArrayList();
+        for (int x = 0; x < DATA.length(); x += chunkSize) {
+            matches.addAll(matcher.feed(DATA.substring(x, Math.min(DATA.length(), x + chunkSize))));
+        }
+        matches.addAll(matcher.finish());
+        List<String> result = Lists.newArrayList();
+        for (ReStreamMatcher.Match match : matches) {
+            assertEquals(DATA.substring((int) match.start(), (int) match.end()), match.group());
+            result.add(match.start() + ":" + match.end() + ":" + match.group());
+        }
+        return result;
+    }
+
+    @Test
+    public void agrees() throws Exception {
+        for (String exp : PATTERNS) {
+            RePattern pattern = HsrePattern.compile(exp, PatternFlags.ADVANCED);
+            List<String> expected = expected(pattern);
+            ReStreamMatcher matcher = pattern.streamMatcher();
+            for (int chunkSize : new int[] {1, 2, 3, 7, 16, DATA.length()}) {
+                // the same matcher, reused after finish().
+                assertEquals(exp + " " + chunkSize, expected, streamed(matcher, chunkSize));
+            }
+        }
+    }
+
+    @Test
+    public void groups() throws Exception {
+        ReStreamMatcher matcher = HsrePattern.compile("x{3,}(y)?", PatternFlags.ADVANCED).streamMatcher();
+        assertTrue(matcher.feed("abc xxx").isEmpty());
+        List<ReStreamMatcher.Match> matches = matcher.feed("x zz");
+        assertEquals(1, matches.size());
+        ReStreamMatcher.Match match = matches.get(0);
+        assertEquals(4, match.start());
+        assertEquals(8, match.end());
+        assertEquals(1, match.groupCount());
+        assertEquals(-1, match.start(1));
+        assertNull(match.group(1));
+        assertTrue(matcher.finish().isEmpty());
+    }
+
+    @Test
+    public void nonGreedyAcrossChunks() throws Exception {
+        // the main machine runs shortest here; a run of it is only good for its own start, unlike a search's.
+        ReStreamMatcher matcher = HsrePattern.compile("x??\\y", PatternFlags.ADVANCED).streamMatcher();
+        List<ReStreamMatcher.Match> matches = Lists.newArrayList(matcher.feed("bx"));
+        matches.addAll(matcher.feed("x"));
+        matches.addAll(matcher.finish());
+        List<String> bounds = Lists.newArrayList();
+        for (ReStreamMatcher.Match match : matches) {
+            bounds.add(match.start() + ":" + match.end());
+        }
+        assertEquals(Arrays.asList("0:0", "2:3", "3:3"), bounds);
+    }
+
+    @Test
+    public void bounded() throws Exception {
+        ReStreamMatcher matcher = HsrePattern.compile("error\\s+code=(\\d+)", PatternFlags.ADVANCED).streamMatcher();
+        List<Long> starts = Lists.newArrayList();
+        List<ReStreamMatcher.Match> matches = Lists.newArrayList();
+        long offset = 0;
+        for (int x = 0; x < 1000; x++) {
+            String line = x % 10 == 0 ? "error code=" + x + "\n" : "nothing to see here\n";
+            if (x % 10 == 0) {
+                starts.add(offset);
+            }
+            // each match is reported once the next line shows that its number is over.
+            matches.addAll(matcher.feed(line));
+            assertEquals(starts.size() - (x % 10 == 0 ? 1 : 0), matches.size());
+            offset += line.length();
+            assertTrue(matcher.buffered() < 64);
+        }
+        assertTrue(matcher.finish().isEmpty());
+        for (int x = 0; x < matches.size(); x++) {
+            assertEquals((long) starts.get(x), matches.get(x).start());
+            assertEquals(Integer.toString(x * 10), matches.get(x).group(1));
+        }
+        assertEquals(100, matches.size());
+    }
+
+    @Test(timeout = 10000)
+    public void manyChunks() throws Exception {
+        // a match that stays in progress over all of these; going over what's buffered again for each chunk would take far too long.
+        ReStreamMatcher matcher = HsrePattern.compile("a.*b", PatternFlags.ADVANCED).streamMatcher();
+        assertTrue(matcher.feed("xxa").isEmpty());
+        for (int x = 0; x < 20000; x++) {
+            assertTrue(matcher.feed("0123456789").isEmpty());
+        }
+        for (int x = 0; x < 20000; x++) {
+            assertTrue(matcher.feed("012345678b").isEmpty());
+        }
+        List<ReStreamMatcher.Match> matches = matcher.finish();
+        assertEquals(1, matches.size());
+        assertEquals(2, matches.get(0).start());
+        assertEquals(3 + 400000, matches.get(0).end());
+
+        // and again, after finish(), with a match that ends before the stream does.
+        assertTrue(matcher.feed("a").isEmpty());
+        for (int x = 0; x < 20000; x++) {
+            assertTrue(matcher.feed("0123456789").isEmpty());
+        }
+        matches = matcher.feed("b\n");
+        matches.addAll(matcher.finish());
+        assertEquals(1, matches.size());
+        assertEquals(0, matches.get(0).start());
+        assertEquals(200002, matches.get(0).end());
+    }
+}
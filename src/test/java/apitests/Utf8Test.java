@@ -0,0 +1,189 @@
+/*
+* Copyright 2014 Basis Technology Corp.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package apitests;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.List;
+
+import com.basistech.tclre.ExecFlags;
+import com.basistech.tclre.HsrePattern;
+import com.basistech.tclre.PatternFlags;
+import com.basistech.tclre.ReMatcher;
+import com.basistech.tclre.RePattern;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Matching over UTF-8 bytes has to find what matching the decoded text does, with byte offsets.
+ */
+public class Utf8Test extends Assert {
+    private static final List<String> PATTERNS = Arrays.asList(
+            "\\mparis\\M",
+            "[éè]\\w+",
+            "(\\w)\\1",
+            "foo(?=bar)",
+            "[\\U00010380-\\U0001039F]+",
+            "^\\w+|\\w+$",
+            "Ü(ber|ML)",
+            "[^a-z ]+"
+    );
+    private static final String DATA = "Paris, paris für Übermensch élève 𐎀𐎁 foobar all ÜML";
+
+    private static int bytes(String text, int offset) {
+        return text.substring(0, offset).getBytes(StandardCharsets.UTF_8).length;
+    }
+
+    @Test
+    public void agrees() throws Exception {
+        byte[] utf8 = DATA.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer direct = ByteBuffer.allocateDirect(utf8.length + 3);
+        direct.put(new byte[] {'x', 'y', 'z'}).put(utf8).flip().position(3);
+        for (PatternFlags[] flags : new PatternFlags[][] {{PatternFlags.ADVANCED}, {PatternFlags.ADVANCED, PatternFlags.ICASE}}) {
+            for (String exp : PATTERNS) {
+                RePattern pattern = HsrePattern.compile(exp, flags);
+                for (ByteBuffer buffer : new ByteBuffer[] {ByteBuffer.wrap(utf8), direct.duplicate()}) {
+                    ReMatcher chars = pattern.matcher(DATA);
+                    ReMatcher bytes = pattern.matcher(buffer);
+                    while (chars.find()) {
+                        assertTrue(exp, bytes.find());
+                        assertEquals(exp, bytes(DATA, chars.start()), bytes.start());
+                        assertEquals(exp, bytes(DATA, chars.end()), bytes.end());
+                        assertEquals(exp, chars.group(), bytes.group());
+                        for (int g = 1; g <= chars.groupCount(); g++) {
+                            assertEquals(exp, chars.group(g), bytes.group(g));
+                        }
+                    }
+                    assertFalse(exp, bytes.find());
+                }
+            }
+        }
+    }
+
+    @Test
+    public void region() throws Exception {
+        RePattern pattern = HsrePattern.compile("^\\w+", PatternFlags.ADVANCED);
+        ReMatcher matcher = pattern.matcher(ByteBuffer.wrap("über élève".getBytes(StandardCharsets.UTF_8)));
+        matcher.region(6, 13);
+        assertTrue(matcher.find());
+        assertEquals("élève", matcher.group());
+        assertTrue(matcher.lookingAt());
+        assertEquals(13, matcher.end());
+        assertTrue(matcher.matches());
+        // and back to chars.
+        matcher.reset("über");
+        assertTrue(matcher.matches());
+        assertEquals(4, matcher.end());
+    }
+
+    @Test
+    public void malformed() throws Exception {
+        RePattern pattern = HsrePattern.compile("a.b", PatternFlags.ADVANCED);
+        // a lone continuation byte, and a truncated sequence.
+        ReMatcher matcher = pattern.matcher(ByteBuffer.wrap(new byte[] {'a', (byte) 0x80, 'b', ' ', 'a', (byte) 0xc3, 'b'}));
+        assertTrue(matcher.find());
+        assertEquals(0, matcher.start());
+        assertEquals(3, matcher.end());
+        assertTrue(matcher.find());
+        assertEquals(4, matcher.start());
+        assertEquals("a�b", matcher.group());
+    }
+
+    @Test
+    public void illFormed() throws Exception {
+        RePattern pattern = HsrePattern.compile("a", PatternFlags.ADVANCED);
+        // past U+10FFFF.
+        ReMatcher matcher = pattern.matcher(ByteBuffer.wrap(new byte[] {(byte) 0xf5, (byte) 0x80, (byte) 0x80, (byte) 0x80, 'a'}));
+        assertTrue(matcher.find());
+        assertEquals(4, matcher.start());
+        matcher = pattern.matcher(ByteBuffer.wrap(new byte[] {(byte) 0xf4, (byte) 0x90, (byte) 0x80, (byte) 0x80, 'a'}));
+        assertTrue(matcher.find());
+        assertEquals(4, matcher.start());
+
+        // each byte of these is a U+FFFD of its own: overlong forms, a surrogate, and past U+10FFFF.
+        byte[][] bad = {
+            {(byte) 0xc0, (byte) 0x80},
+            {(byte) 0xc1, (byte) 0xbf},
+            {(byte) 0xe0, (byte) 0x80, (byte) 0x80},
+            {(byte) 0xed, (byte) 0xa0, (byte) 0x80},
+            {(byte) 0xf0, (byte) 0x80, (byte) 0x80, (byte) 0x80},
+            {(byte) 0xf4, (byte) 0x90, (byte) 0x80, (byte) 0x80},
+            {(byte) 0xf8, (byte) 0x88, (byte) 0x80, (byte) 0x80, (byte) 0x80},
+        };
+        for (byte[] sequence : bad) {
+            byte[] data = new byte[sequence.length + 2];
+            data[0] = 'x';
+            System.arraycopy(sequence, 0, data, 1, sequence.length);
+            data[data.length - 1] = 'y';
+            pattern = HsrePattern.compile("x\\uFFFD{" + sequence.length + "}y", PatternFlags.ADVANCED);
+            assertTrue(Arrays.toString(sequence), pattern.matcher(ByteBuffer.wrap(data)).find());
+        }
+
+        // and the edges of what is well-formed.
+        pattern = HsrePattern.compile("x(.)y", PatternFlags.ADVANCED);
+        for (String ok : new String[] {"\u0080", "\u07ff", "\u0800", "\ud7ff", "\ue000", "\uffff",
+            "\ud800\udc00", "\udbff\udfff"}) {
+            String text = "x" + ok + "y";
+            matcher = pattern.matcher(ByteBuffer.wrap(text.getBytes(StandardCharsets.UTF_8)));
+            assertTrue(ok, matcher.find());
+            assertEquals(ok, ok, matcher.group(1));
+        }
+    }
+
+    @Test
+    public void otherPatterns() throws Exception {
+        // a pattern from elsewhere needn't know about UTF-8, or streams.
+        final RePattern inner = HsrePattern.compile("a", PatternFlags.ADVANCED);
+        RePattern other = new RePattern() {
+            @Override
+            public ReMatcher matcher(CharSequence data, ExecFlags... flags) {
+                return inner.matcher(data, flags);
+            }
+
+            @Override
+            public ReMatcher matcher(CharSequence data, EnumSet<ExecFlags> flags) {
+                return inner.matcher(data, flags);
+            }
+
+            @Override
+            public String pattern() {
+                return inner.pattern();
+            }
+
+            @Override
+            public EnumSet<PatternFlags> flags() {
+                return inner.flags();
+            }
+        };
+        assertTrue(other.matcher("bab").find());
+        try {
+            other.matcher(ByteBuffer.wrap(new byte[] {'a'}));
+            fail();
+        } catch (UnsupportedOperationException e) {
+            // expected
+        }
+        try {
+            other.streamMatcher();
+            fail();
+        } catch (UnsupportedOperationException e) {
+            // expected
+        }
+    }
+}
@@ -0,0 +1,97 @@
+/*
+* Copyright 2014 Basis Technology Corp.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package com.basistech.tclre;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * The char arrays that the runtime matches on, from the various sorts of CharSequence.
+ */
+public class CharsTest {
+    private static final String DATA = "one 𐎀 two three";
+
+    private static CharSequence[] sequences() {
+        CharBuffer direct = ByteBuffer.allocateDirect(DATA.length() * 2).asCharBuffer();
+        direct.put(DATA).flip();
+        CharBuffer offset = CharBuffer.wrap(("xx" + DATA).toCharArray(), 2, DATA.length()).slice();
+        return new CharSequence[] {DATA, new StringBuilder(DATA), new StringBuffer(DATA),
+            CharBuffer.wrap(DATA.toCharArray()), offset, direct, CharBuffer.wrap(DATA)};
+    }
+
+    @Test
+    public void chars() throws Exception {
+        char[] buffer = new char[DATA.length() + 4];
+        for (CharSequence cs : sequences()) {
+            char[] chars = Runtime.chars(cs, null);
+            assertEquals(cs.getClass().getName(), DATA, new String(chars));
+            // a long enough array is copied into.
+            assertSame(buffer, Runtime.chars(cs, buffer));
+            assertEquals(cs.getClass().getName(), DATA, new String(buffer, 0, cs.length()));
+        }
+        char[] array = DATA.toCharArray();
+        // even a heap buffer's own array gets copied, and a buffer over part of one gets just that part.
+        char[] copy = Runtime.chars(CharBuffer.wrap(array), null);
+        assertNotSame(array, copy);
+        assertEquals("e 𐎀", new String(Runtime.chars(CharBuffer.wrap(array, 2, 4), new char[3])));
+    }
+
+    @Test
+    public void snapshot() throws Exception {
+        // the matches, and the groups, come from the data as it was at the first match, until a reset.
+        RePattern pattern = HsrePattern.compile("t\\w+", PatternFlags.ADVANCED);
+        StringBuilder builder = new StringBuilder(DATA);
+        CharBuffer heap = CharBuffer.wrap(DATA.toCharArray());
+        for (CharSequence cs : new CharSequence[] {builder, heap}) {
+            ReMatcher matcher = pattern.matcher(cs);
+            assertTrue(matcher.find());
+            if (cs == builder) {
+                builder.replace(7, 10, "TWO");
+            } else {
+                heap.put(7, 'T').put(8, 'W').put(9, 'O');
+            }
+            assertEquals("two", matcher.group());
+            assertTrue(matcher.find());
+            assertEquals("three", matcher.group());
+            matcher.reset(cs);
+            assertTrue(matcher.find());
+            assertEquals("three", matcher.group());
+            assertEquals(11, matcher.start());
+        }
+    }
+
+    @Test
+    public void match() throws Exception {
+        RePattern pattern = HsrePattern.compile("t\\w+|𐎀", PatternFlags.ADVANCED);
+        for (CharSequence cs : sequences()) {
+            ReMatcher matcher = pattern.matcher(cs);
+            assertTrue(matcher.find());
+            assertEquals("𐎀", matcher.group());
+            assertTrue(matcher.find());
+            assertEquals("two", matcher.group());
+            assertTrue(matcher.find());
+            assertEquals(11, matcher.start());
+        }
+    }
+}
@@ -0,0 +1,101 @@
+/*
+* Copyright 2014 Basis Technology Corp.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package com.basistech.tclre;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+
+import com.google.common.collect.BoundType;
+import com.google.common.collect.Range;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Colors of codepoints outside the BMP, which are looked up without the range map,
+ * and of those in it, which are looked up in shared pages.
+ */
+public class ColorLookupTest {
+    private static final String EXP = "[\\U00010380-\\U0001039F]|[\\U0001F600-\\U0001F64F]x|\\U00020000|\\uffff";
+
+    private static RuntimeColorMap map() throws RegexException {
+        return ((HsrePattern) HsrePattern.compile(EXP, PatternFlags.ADVANCED)).guts.cm;
+    }
+
+    @Test
+    public void colors() throws Exception {
+        RuntimeColorMap cm = map();
+        short ugaritic = cm.getcolor(0x10380);
+        assertEquals(ugaritic, cm.getcolor(0x1039F));
+        assertTrue(ugaritic != cm.getcolor(0x1037F));
+        assertTrue(ugaritic != cm.getcolor(0x103A0));
+        short emoji = cm.getcolor(0x1F600);
+        assertEquals(emoji, cm.getcolor(0x1F64F));
+        assertTrue(emoji != ugaritic);
+        assertEquals(cm.getcolor(0x1037F), cm.getcolor(0x10FFFF));
+        assertTrue(cm.getcolor(0x20000) != cm.getcolor(0x20001));
+        assertEquals(cm.getcolor((char) 0xffff), cm.getcolor(0xffff));
+        assertTrue(cm.getcolor(0xffff) != cm.getcolor(0xfffe));
+        // every range has its own color all the way through.
+        for (Range<Integer> range : cm.ranges()) {
+            int min = range.lowerBoundType() == BoundType.OPEN ? range.lowerEndpoint() + 1 : range.lowerEndpoint();
+            int max = range.upperBoundType() == BoundType.OPEN ? range.upperEndpoint() - 1 : range.upperEndpoint();
+            assertEquals(range.toString(), cm.getcolor(min), cm.getcolor(max));
+            assertEquals(range.toString(), cm.getcolor(min), cm.getcolor(min + (max - min) / 2));
+        }
+    }
+
+    @Test
+    public void serialized() throws Exception {
+        RuntimeColorMap cm = map();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ObjectOutputStream out = new ObjectOutputStream(bytes);
+        out.writeObject(cm);
+        out.close();
+        RuntimeColorMap copy = (RuntimeColorMap) new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray())).readObject();
+        for (int codepoint = 0; codepoint <= Character.MAX_CODE_POINT; codepoint += 97) {
+            assertEquals(cm.getcolor(codepoint), copy.getcolor(codepoint));
+        }
+    }
+
+    @Test
+    public void match() throws Exception {
+        RePattern pattern = HsrePattern.compile(EXP, PatternFlags.ADVANCED);
+        assertTrue(pattern.matcher("a 😀x b").find());
+        assertFalse(pattern.matcher("a 😀 b 𐎿").find());
+        assertTrue(pattern.matcher("a 😀 b 𐎟").find());
+        assertTrue(pattern.matcher("𠀀").find());
+    }
+
+    @Test
+    public void sharedPages() throws Exception {
+        RuntimeColorMap cm = map();
+        RuntimeColorMap other = ((HsrePattern) HsrePattern.compile("[a-z]+\\uffff", PatternFlags.ADVANCED)).guts.cm;
+        // the CJK pages are all one color in both.
+        assertSame(cm.bmpPages[0x4e], other.bmpPages[0x4e]);
+        assertSame(cm.bmpPages[0x4e], cm.bmpPages[0x9f]);
+        assertTrue(cm.bmpPages[0] != other.bmpPages[0]);
+        assertEquals(other.getcolor('q'), other.getcolor('a'));
+        assertTrue(other.getcolor('A') != other.getcolor('a'));
+        assertTrue(other.getcolor((char) 0xfffe) != other.getcolor((char) 0xffff));
+    }
+}
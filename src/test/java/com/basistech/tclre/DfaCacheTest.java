@@ -0,0 +1,231 @@
+/*
+* Copyright 2014 Basis Technology Corp.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package com.basistech.tclre;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import com.google.common.collect.Lists;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * The state set cache is shared across matches and matchers; make sure that doesn't change any answers.
+ */
+public class DfaCacheTest {
+
+    @Test
+    public void sharedAcrossMatchers() throws Exception {
+        HsrePattern pattern = (HsrePattern) HsrePattern.compile("(a|ab)(c|bcd)(d*)", PatternFlags.ADVANCED);
+        for (int x = 0; x < 3; x++) {
+            ReMatcher matcher = pattern.matcher("xxabcdyyabcd");
+            assertTrue(matcher.find());
+            assertEquals(2, matcher.start());
+            assertEquals(6, matcher.end());
+            assertEquals("ab", matcher.group(1));
+            assertEquals("c", matcher.group(2));
+            assertEquals("d", matcher.group(3));
+            assertTrue(matcher.find());
+            assertEquals(8, matcher.start());
+            assertFalse(matcher.find());
+        }
+        assertTrue(pattern.guts.search.cache().size() > 1);
+        assertTrue(pattern.guts.tree.machine.cache().size() > 1);
+    }
+
+    @Test
+    public void internsStateSets() throws Exception {
+        Cnfa machine = ((HsrePattern) HsrePattern.compile("(a|ab)(c|bcd)(d*)", PatternFlags.ADVANCED)).guts.tree.machine;
+        DfaCache cache = new DfaCache(machine);
+        DfaCache.Table table = cache.table();
+        long[] work = new long[DfaCache.words(machine.states.length)];
+        int[] id = new int[1];
+        work[0] = 0x6L;
+        table = cache.transition(table, DfaCache.INITIAL, 0, work, false, false, true, id);
+        int born = id[0];
+        assertEquals(2, cache.size());
+        // the caller's scratch buffer is copied, so reusing it changes nothing in the cache.
+        long[] same = work.clone();
+        work[0] = 0x9L;
+        assertEquals(0x6L, table.states[born][0]);
+        // the same states, in another buffer, are the same state set.
+        table = cache.transition(table, DfaCache.INITIAL, 1, same, false, false, true, id);
+        assertEquals(born, id[0]);
+        assertEquals(2, cache.size());
+        assertEquals(born, DfaCache.next(table.trans, DfaCache.INITIAL * machine.ncolors + 1));
+        table = cache.transition(table, DfaCache.INITIAL, 2, work, false, false, true, id);
+        assertTrue(id[0] != born);
+        assertEquals(3, cache.size());
+    }
+
+    @Test
+    public void secondPassAddsNothing() throws Exception {
+        HsrePattern pattern = (HsrePattern) HsrePattern.compile("(a|ab)(c|bcd)(d*)", PatternFlags.ADVANCED);
+        String doc = "xxabcdyyabcd abd abcdddd bcd";
+        String expected = allMatches(pattern, doc);
+        DfaCache.Table search = pattern.guts.search.cache().table();
+        DfaCache.Table main = pattern.guts.tree.machine.cache().table();
+        int searchSize = pattern.guts.search.cache().size();
+        int mainSize = pattern.guts.tree.machine.cache().size();
+        for (int x = 0; x < 3; x++) {
+            assertEquals(expected, allMatches(pattern, doc));
+        }
+        // every state set that the later passes needed was found, not made again.
+        assertEquals(searchSize, pattern.guts.search.cache().size());
+        assertEquals(mainSize, pattern.guts.tree.machine.cache().size());
+        assertTrue(search == pattern.guts.search.cache().table());
+        assertTrue(main == pattern.guts.tree.machine.cache().table());
+    }
+
+    @Test
+    public void denseTable() throws Exception {
+        HsrePattern pattern = (HsrePattern) HsrePattern.compile("\\m[[:alpha:]]+ing\\M|b.c", PatternFlags.ADVANCED);
+        allMatches(pattern, "singing ringing ring bxc b c king");
+        Cnfa machine = pattern.guts.tree.machine;
+        DfaCache.Table table = machine.cache().table();
+        assertTrue(table.count > DfaCache.INITIAL + 1);
+        for (int id = DfaCache.INITIAL; id < table.count; id++) {
+            // the flags are a function of the states.
+            assertEquals(DfaCache.bit(table.states[id], machine.post), DfaCache.bit(table.post, id));
+            for (int co = 0; co < machine.ncolors; co++) {
+                int next = DfaCache.next(table.trans, id * machine.ncolors + co);
+                assertTrue(next == DfaCache.UNKNOWN || next == DfaCache.DEAD
+                        || (next >= DfaCache.INITIAL && next < table.count));
+            }
+        }
+    }
+
+    @Test
+    public void idsSurviveResize() throws Exception {
+        // 2^7 state sets at most; a table starts with room for 16.
+        HsrePattern pattern = (HsrePattern) HsrePattern.compile("(?:a|b)*a(?:a|b){6}", PatternFlags.ADVANCED);
+        DfaCache cache = pattern.guts.tree.machine.cache();
+        assertTrue(pattern.matcher("aaaaaaa").find());
+        DfaCache.Table before = cache.table();
+        String data = randomAb(3000);
+        java.util.regex.Matcher jm = java.util.regex.Pattern.compile("[ab]*a[ab]{6}").matcher(data);
+        ReMatcher matcher = pattern.matcher(data);
+        for (int from = 0; from < data.length(); from += 97) {
+            boolean found = jm.find(from);
+            assertEquals(found, matcher.find(from));
+            if (found) {
+                assertEquals(jm.start(), matcher.start());
+                assertEquals(jm.end(), matcher.end());
+            }
+        }
+        DfaCache.Table after = cache.table();
+        assertTrue(after.capacity > before.capacity);
+        assertEquals(before.epoch, after.epoch);
+        int ncolors = pattern.guts.tree.machine.ncolors;
+        for (int id = DfaCache.INITIAL; id < before.count; id++) {
+            assertTrue(Arrays.equals(before.states[id], after.states[id]));
+            assertEquals(DfaCache.bit(before.post, id), DfaCache.bit(after.post, id));
+            assertEquals(DfaCache.bit(before.noprogress, id), DfaCache.bit(after.noprogress, id));
+            for (int co = 0; co < ncolors; co++) {
+                int known = DfaCache.next(before.trans, id * ncolors + co);
+                if (known != DfaCache.UNKNOWN) {
+                    assertEquals(known, DfaCache.next(after.trans, id * ncolors + co));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void flushKeepsWorking() throws Exception {
+        // (a|b)*a(a|b){n} makes the DFA blow up exponentially, so a long input goes over the memory cap.
+        HsrePattern pattern = (HsrePattern) HsrePattern.compile("(?:a|b)*a(?:a|b){14}", PatternFlags.ADVANCED);
+        String data = randomAb(20000) + "bbbbbbbbbbbbbb";
+        java.util.regex.Matcher jm = java.util.regex.Pattern.compile("[ab]*a[ab]{14}").matcher(data);
+        assertTrue(jm.find());
+        ReMatcher matcher = pattern.matcher(data);
+        assertTrue(matcher.find());
+        assertEquals(jm.start(), matcher.start());
+        assertEquals(jm.end(), matcher.end());
+        assertTrue(pattern.guts.tree.machine.cache().bytes() <= DfaCache.MAX_BYTES);
+    }
+
+    @Test
+    public void concurrentMatchers() throws Exception {
+        final String exp = "\\m(?:0?[1-9]|1[0-2])([-/.])(?:0?[1-9]|[12]\\d|3[01])[-/.](\\d{2}|\\d{4})\\M|[[:alpha:]]+ing\\M";
+        final List<String> docs = Lists.newArrayList();
+        for (int x = 0; x < 200; x++) {
+            docs.add(String.format("on %d/%d/%d we went skiing, %d-%d-19%02d was boring; nothing %d.%d.%d",
+                    x % 13, x % 32, 1900 + x, x % 12 + 1, x % 28 + 1, x % 100, x % 40, x % 50, x));
+        }
+        final RePattern reference = HsrePattern.compile(exp, PatternFlags.ADVANCED);
+        final List<String> expected = Lists.newArrayList();
+        for (String doc : docs) {
+            expected.add(allMatches(reference, doc));
+        }
+
+        final RePattern shared = HsrePattern.compile(exp, PatternFlags.ADVANCED);
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<Boolean>> results = Lists.newArrayList();
+            for (int t = 0; t < 8; t++) {
+                final int offset = t;
+                results.add(executor.submit(new Callable<Boolean>() {
+                    @Override
+                    public Boolean call() throws Exception {
+                        for (int x = 0; x < docs.size(); x++) {
+                            int index = (x + offset * 25) % docs.size();
+                            if (!expected.get(index).equals(allMatches(shared, docs.get(index)))) {
+                                return false;
+                            }
+                        }
+                        return true;
+                    }
+                }));
+            }
+            for (Future<Boolean> result : results) {
+                assertTrue(result.get());
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    private static String randomAb(int length) {
+        StringBuilder sb = new StringBuilder();
+        long bits = 0x5DEECE66DL;
+        for (int x = 0; x < length; x++) {
+            bits = (bits * 0x5DEECE66DL + 0xBL) & ((1L << 48) - 1);
+            sb.append((bits >>> 40 & 1) == 0 ? 'a' : 'b');
+        }
+        return sb.toString();
+    }
+
+    private static String allMatches(RePattern pattern, String doc) {
+        StringBuilder sb = new StringBuilder();
+        ReMatcher matcher = pattern.matcher(doc);
+        while (matcher.find()) {
+            sb.append(matcher.start()).append('-').append(matcher.end());
+            for (int g = 1; g <= matcher.groupCount(); g++) {
+                sb.append(' ').append(matcher.start(g));
+            }
+            sb.append(';');
+        }
+        return sb.toString();
+    }
+}
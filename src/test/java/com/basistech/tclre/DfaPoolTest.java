@@ -0,0 +1,58 @@
+/*
+* Copyright 2014 Basis Technology Corp.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package com.basistech.tclre;
+
+import java.util.EnumSet;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * A runtime reuses its Dfas from one exec to the next.
+ */
+public class DfaPoolTest {
+
+    @Test
+    public void reuse() throws Exception {
+        HsrePattern first = (HsrePattern) HsrePattern.compile("(a+)(b)(?=c)", PatternFlags.ADVANCED);
+        HsrePattern second = (HsrePattern) HsrePattern.compile("x(y|z)", PatternFlags.ADVANCED);
+        String data = "aab aabc xz";
+        EnumSet<ExecFlags> flags = EnumSet.noneOf(ExecFlags.class);
+        Runtime runtime = new Runtime();
+        runtime.setData(data, data.toCharArray());
+
+        assertTrue(runtime.exec(first, 0, 0, data.length(), flags));
+        Dfa search = runtime.dfa(first.guts.search);
+        assertTrue(runtime.exec(first, 0, 0, data.length(), flags));
+        assertSame(search, runtime.dfa(first.guts.search));
+        runtime.dissect();
+        assertEquals(4, runtime.match[0]);
+        assertEquals(6, runtime.match[3]);
+
+        // another pattern gets Dfas of its own.
+        assertTrue(runtime.exec(second, 0, 0, data.length(), flags));
+        assertEquals(9, runtime.match[0]);
+        assertTrue(runtime.exec(first, 0, 0, data.length(), flags));
+        assertNotSame(search, runtime.dfa(first.guts.search));
+        assertFalse(runtime.exec(first, 0, 7, data.length(), flags));
+    }
+}
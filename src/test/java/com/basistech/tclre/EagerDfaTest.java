@@ -0,0 +1,144 @@
+/*
+* Copyright 2014 Basis Technology Corp.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package com.basistech.tclre;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * DFAs built at compile time ({@link PatternFlags#EAGER}) have to give the same answers as the lazy ones.
+ */
+public class EagerDfaTest {
+    private static final String[] PATTERNS = {
+        "(a|ab)(c|bcd)(d*)",
+        "\\m[[:alpha:]]+ing\\M",
+        "^(?:0?[1-9]|1[0-2])([-/.])(?:0?[1-9]|[12]\\d|3[01])",
+        "b.c",
+        "[\\U00010380-\\U0001039F]+x",
+        "colou?r$",
+    };
+
+    private static final String DATA = "abcd xabcdd\nsinging ringing ring 12/31 1.1 colour\n"
+            + "b𐎀c 𐎀𐎁x colr color";
+
+    @Test
+    public void sameAnswers() throws Exception {
+        for (String exp : PATTERNS) {
+            HsrePattern lazy = (HsrePattern) HsrePattern.compile(exp, PatternFlags.ADVANCED);
+            HsrePattern eager = (HsrePattern) HsrePattern.compile(exp, PatternFlags.ADVANCED, PatternFlags.EAGER);
+            int before = eager.guts.search.cache().size();
+            assertTrue(exp, before > 1);
+            assertEquals(exp, allMatches(lazy), allMatches(eager));
+            // everything was already there.
+            assertEquals(exp, before, eager.guts.search.cache().size());
+        }
+    }
+
+    @Test
+    public void survivesSerialization() throws Exception {
+        HsrePattern eager = (HsrePattern) HsrePattern.compile(PATTERNS[1], PatternFlags.ADVANCED, PatternFlags.EAGER);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ObjectOutputStream out = new ObjectOutputStream(bytes);
+        out.writeObject(eager);
+        out.close();
+        ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+        HsrePattern copy = (HsrePattern) in.readObject();
+        int before = copy.guts.tree.machine.cache().size();
+        assertEquals(allMatches(eager), allMatches(copy));
+        assertEquals(before, copy.guts.tree.machine.cache().size());
+        assertTrue(copy.guts.tree.machine.unanchored().cache().complete());
+        assertTrue(copy.guts.reverse.unanchored().cache().complete());
+    }
+
+    @Test
+    public void leftmostLeavesTablesAlone() throws Exception {
+        // the first start that the search suggests fails, so find goes through Runtime#leftmost.
+        String exp = "a[bc]*d";
+        String data = "ab ac abcbx acbcd abd";
+        HsrePattern lazy = (HsrePattern) HsrePattern.compile(exp, PatternFlags.ADVANCED);
+        HsrePattern eager = (HsrePattern) HsrePattern.compile(exp, PatternFlags.ADVANCED, PatternFlags.EAGER);
+        Cnfa[] machines = {eager.guts.tree.machine, eager.guts.tree.machine.unanchored(),
+            eager.guts.reverse.unanchored()};
+        DfaCache.Table[] tables = new DfaCache.Table[machines.length];
+        int[] sizes = new int[machines.length];
+        for (int x = 0; x < machines.length; x++) {
+            assertTrue(machines[x].cache().complete());
+            tables[x] = machines[x].cache().table();
+            sizes[x] = machines[x].cache().size();
+        }
+        assertEquals("12-17;18-21;", allMatches(lazy, data));
+        assertEquals(allMatches(lazy, data), allMatches(eager, data));
+        for (int x = 0; x < machines.length; x++) {
+            assertSame(tables[x], machines[x].cache().table());
+            assertEquals(sizes[x], machines[x].cache().size());
+        }
+        // the second pass of the reach got a cache of its own.
+        assertTrue(eager.guts.tree.machine.reachCache().size() > 0);
+    }
+
+    @Test
+    public void notForLookahead() throws Exception {
+        Cnfa search = ((HsrePattern) HsrePattern.compile("a(?=b)", PatternFlags.ADVANCED, PatternFlags.EAGER)).guts.search;
+        // just the initial state set; the rest is left for matching time.
+        assertEquals(1, search.cache().size());
+        assertNull(DfaCache.determinize(
+                ((HsrePattern) HsrePattern.compile("(?:a|b)*a(?:a|b){14}", PatternFlags.ADVANCED)).guts.search, 100));
+    }
+
+    @Test
+    public void minimized() throws Exception {
+        String exp = "paris|london|lisbon|berlin|dublin";
+        HsrePattern lazy = (HsrePattern) HsrePattern.compile(exp, PatternFlags.ADVANCED, PatternFlags.ICASE);
+        DfaCache.Table full = DfaCache.determinize(lazy.guts.tree.machine, DfaCache.EAGER_STATES);
+        DfaCache.Table minimal = DfaCache.minimize(full);
+        assertTrue(minimal.count < full.count);
+        // nothing left to merge.
+        assertEquals(minimal.count, DfaCache.minimize(minimal).count);
+
+        HsrePattern eager = (HsrePattern) HsrePattern.compile(exp, PatternFlags.ADVANCED, PatternFlags.ICASE,
+                PatternFlags.EAGER);
+        assertEquals(minimal.count - 1, eager.guts.tree.machine.cache().size());
+        String data = "From Paris to LONDON, lisbon, Berlin and dublinx; not berlinn or Londo.";
+        assertEquals(allMatches(lazy, data), allMatches(eager, data));
+    }
+
+    private static String allMatches(RePattern pattern) {
+        return allMatches(pattern, DATA);
+    }
+
+    private static String allMatches(RePattern pattern, String data) {
+        StringBuilder sb = new StringBuilder();
+        ReMatcher matcher = pattern.matcher(data);
+        while (matcher.find()) {
+            sb.append(matcher.start()).append('-').append(matcher.end());
+            for (int g = 1; g <= matcher.groupCount(); g++) {
+                sb.append(' ').append(matcher.start(g)).append('-').append(matcher.end(g));
+            }
+            sb.append(';');
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,66 @@
+/*
+* Copyright 2014 Basis Technology Corp.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package com.basistech.tclre;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Grep, over buffers and mapped files.
+ */
+public class GrepTest {
+    private static final String TEXT = "first line\nsecond: error\n\nfourth error here\nfïfth\\s\nsixth\n";
+
+    private static String grep(String pattern, String text) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        long lines = Grep.grep(Grep.compile(pattern), ByteBuffer.wrap(text.getBytes(StandardCharsets.UTF_8)), null, 1, out);
+        assertEquals(text.split("\n", -1).length, lines);
+        return out.toString("UTF-8");
+    }
+
+    @Test
+    public void lines() throws Exception {
+        assertEquals("2:second: error\n4:fourth error here\n", grep("error", TEXT));
+        assertEquals("1:first line\n", grep("^f.*ne$", TEXT));
+        assertEquals("5:fïfth\\s\n", grep("ï", TEXT));
+        assertEquals("", grep("nothing", TEXT));
+        // a match that runs into the next line isn't one.
+        assertEquals("", grep("line\\s+second", TEXT));
+        assertEquals("2:second: error\n", grep("error\\s*$|:\\s", TEXT));
+        // every line matches this, even the empty one.
+        assertEquals(7, grep("x*", TEXT + "last").split("\n").length);
+    }
+
+    @Test
+    public void file() throws Exception {
+        File file = File.createTempFile("grep", ".txt");
+        file.deleteOnExit();
+        Files.write(file.toPath(), TEXT.getBytes(StandardCharsets.UTF_8));
+        for (int window : new int[] {Grep.MAX_WINDOW, 16, 3}) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            Grep.grep(Grep.compile("e[rx]"), file, "f", window, out);
+            assertEquals("f:2:second: error\nf:4:fourth error here\n", out.toString("UTF-8"));
+        }
+    }
+}
@@ -0,0 +1,71 @@
+/*
+* Copyright 2014 Basis Technology Corp.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package com.basistech.tclre;
+
+import java.util.EnumSet;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * The groups of a match are only worked out when they are asked for.
+ */
+public class LazyDissectTest {
+
+    @Test
+    public void runtime() throws Exception {
+        HsrePattern pattern = (HsrePattern) HsrePattern.compile("(\\w+)=(\\d+)|(x)", PatternFlags.ADVANCED);
+        String data = "a b=12 x";
+        Runtime runtime = new Runtime();
+        runtime.setData(data, data.toCharArray());
+        assertTrue(runtime.exec(pattern, 0, 0, data.length(), EnumSet.noneOf(ExecFlags.class)));
+        assertEquals(1, runtime.nmatch);
+        assertEquals(2, runtime.match[0]);
+        assertEquals(6, runtime.match[1]);
+        runtime.dissect();
+        assertEquals(3, runtime.nmatch);
+        assertEquals(4, runtime.match[4]);
+        // once is enough.
+        runtime.dissect();
+        assertEquals(3, runtime.nmatch);
+    }
+
+    @Test
+    public void matcher() throws Exception {
+        RePattern pattern = HsrePattern.compile("(\\w+)=(\\d+)|(x)", PatternFlags.ADVANCED);
+        ReMatcher matcher = pattern.matcher("a b=12 x c=3");
+        assertTrue(matcher.find());
+        assertEquals("b=12", matcher.group());
+        assertTrue(matcher.find());
+        assertEquals(7, matcher.start());
+        assertEquals(8, matcher.end());
+        // the groups are those of the latest match, though nobody asked about the ones before.
+        assertEquals(3, matcher.groupCount());
+        assertEquals(-1, matcher.start(1));
+        assertNull(matcher.group(1));
+        assertEquals("x", matcher.group(3));
+        assertTrue(matcher.find());
+        assertEquals("c", matcher.group(1));
+        assertEquals("3", matcher.group(2));
+        assertEquals(11, matcher.start(2));
+        assertFalse(matcher.find());
+    }
+}
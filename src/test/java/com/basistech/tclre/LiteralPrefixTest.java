@@ -0,0 +1,118 @@
+/*
+* Copyright 2014 Basis Technology Corp.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package com.basistech.tclre;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * The literal prefix and first colors that let find() skip ahead.
+ */
+public class LiteralPrefixTest {
+
+    private static String prefix(String exp, PatternFlags... flags) throws RegexException {
+        PatternFlags[] all = new PatternFlags[flags.length + 1];
+        System.arraycopy(flags, 0, all, 1, flags.length);
+        all[0] = PatternFlags.ADVANCED;
+        return ((HsrePattern) HsrePattern.compile(exp, all)).guts.prefix;
+    }
+
+    @Test
+    public void extraction() throws Exception {
+        assertEquals("error", prefix("error\\s+code=\\d+"));
+        assertEquals("Subject:", prefix("^Subject:"));
+        assertEquals("ab", prefix("ab(c|d)"));
+        assertEquals("foobar", prefix("(?:foo)bar"));
+        assertEquals("𐎀x", prefix("𐎀x"));
+        assertEquals("", prefix("x*abc"));
+        assertEquals("", prefix("a|ab"));
+        assertEquals("", prefix("abc", PatternFlags.ICASE));
+        assertEquals("", prefix("(?=ab)abc"));
+    }
+
+    @Test
+    public void find() throws Exception {
+        RePattern pattern = HsrePattern.compile("error\\s+code=(\\d+)", PatternFlags.ADVANCED);
+        String data = "errors: error code, error  code=42, error code=7";
+        for (CharSequence cs : new CharSequence[] {data, new StringBuilder(data)}) {
+            ReMatcher matcher = pattern.matcher(cs);
+            assertTrue(matcher.find());
+            assertEquals(20, matcher.start());
+            assertEquals("42", matcher.group(1));
+            assertTrue(matcher.find());
+            assertEquals("7", matcher.group(1));
+            assertFalse(matcher.find());
+        }
+        assertFalse(pattern.matcher("no errors here").find());
+    }
+
+    private static boolean[] firstColors(String exp) throws RegexException {
+        return ((HsrePattern) HsrePattern.compile(exp, PatternFlags.ADVANCED)).guts.firstColors;
+    }
+
+    @Test
+    public void firstColors() throws Exception {
+        HsrePattern pattern = (HsrePattern) HsrePattern.compile("[0-9]+\\.[0-9]+|x?y", PatternFlags.ADVANCED);
+        boolean[] first = pattern.guts.firstColors;
+        assertTrue(first[pattern.guts.cm.getcolor('7')]);
+        assertTrue(first[pattern.guts.cm.getcolor('x')]);
+        assertTrue(first[pattern.guts.cm.getcolor('y')]);
+        assertFalse(first[pattern.guts.cm.getcolor('a')]);
+        assertFalse(first[pattern.guts.cm.getcolor('.')]);
+        // these could start anywhere.
+        assertNull(firstColors("a*"));
+        assertNull(firstColors(".b"));
+        assertNull(firstColors("(?=a)[ab]"));
+
+        String data = "version 1.25, or else xy; 𐎀 22.4";
+        for (CharSequence cs : new CharSequence[] {data, new StringBuilder(data)}) {
+            ReMatcher matcher = pattern.matcher(cs);
+            assertTrue(matcher.find());
+            assertEquals("1.25", matcher.group());
+            assertTrue(matcher.find());
+            assertEquals("xy", matcher.group());
+            assertTrue(matcher.find());
+            assertEquals("22.4", matcher.group());
+            assertFalse(matcher.find());
+        }
+        // and with a back-reference
+        RePattern backref = HsrePattern.compile("([0-9])\\1", PatternFlags.ADVANCED);
+        ReMatcher matcher = backref.matcher("a 12 b 334");
+        assertTrue(matcher.find());
+        assertEquals(7, matcher.start());
+    }
+
+    @Test
+    public void context() throws Exception {
+        // skipping ahead must not lose track of what comes before the literal.
+        RePattern pattern = HsrePattern.compile("\\mpar", PatternFlags.ADVANCED);
+        ReMatcher matcher = pattern.matcher("spar par");
+        assertTrue(matcher.find());
+        assertEquals(5, matcher.start());
+        pattern = HsrePattern.compile("^abc", PatternFlags.ADVANCED);
+        assertFalse(pattern.matcher("xabc").find());
+        assertTrue(pattern.matcher("abc").find());
+        pattern = HsrePattern.compile("^abc", PatternFlags.ADVANCED, PatternFlags.NLANCH);
+        matcher = pattern.matcher("xabc\nabc");
+        assertTrue(matcher.find());
+        assertEquals(5, matcher.start());
+    }
+}
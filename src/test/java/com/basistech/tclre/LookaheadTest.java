@@ -0,0 +1,66 @@
+/*
+* Copyright 2014 Basis Technology Corp.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package com.basistech.tclre;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Lookahead constraints are remembered within an exec, and only look as far as they can match.
+ */
+public class LookaheadTest {
+
+    private static int[] steps(String exp) throws RegexException {
+        return ((HsrePattern) HsrePattern.compile(exp, PatternFlags.ADVANCED)).guts.laconSteps;
+    }
+
+    @Test
+    public void steps() throws Exception {
+        // the codepoint before, three of the constraint, and the one after.
+        assertEquals(5, steps("x(?=abc)")[1]);
+        assertEquals(4, steps("x(?=ab|c)")[1]);
+        assertEquals(-1, steps("x(?=a+)")[1]);
+        assertEquals(-1, steps("x(?!.*y)")[1]);
+    }
+
+    @Test
+    public void find() throws Exception {
+        StringBuilder data = new StringBuilder();
+        for (int x = 0; x < 2000; x++) {
+            data.append("foo baz ");
+        }
+        data.append("foo bar 𐎀𐎁");
+        RePattern pattern = HsrePattern.compile("foo(?= bar)", PatternFlags.ADVANCED);
+        ReMatcher matcher = pattern.matcher(data);
+        assertTrue(matcher.find());
+        assertEquals(16000, matcher.start());
+        assertFalse(matcher.find());
+
+        // a negative one, and one that needs EOS.
+        matcher = HsrePattern.compile("o(?!o| baz)", PatternFlags.ADVANCED).matcher(data);
+        assertTrue(matcher.find());
+        assertEquals(16002, matcher.start());
+        matcher = HsrePattern.compile("\\w+ (?=\\S{1,2}$)", PatternFlags.ADVANCED).matcher(data);
+        assertTrue(matcher.find());
+        assertEquals(16004, matcher.start());
+        matcher = HsrePattern.compile("\\w+ (?=\\S{1,2}$)", PatternFlags.ADVANCED).matcher(data + "x");
+        assertFalse(matcher.find());
+    }
+}
@@ -0,0 +1,134 @@
+/*
+* Copyright 2014 Basis Technology Corp.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package com.basistech.tclre;
+
+import java.util.EnumSet;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import com.google.common.collect.Lists;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * The cache of compiled patterns.
+ */
+public class PatternCacheTest {
+
+    @Test
+    public void byPatternAndFlags() throws Exception {
+        PatternCache cache = new PatternCache(64L * 1024 * 1024);
+        EnumSet<PatternFlags> flags = EnumSet.of(PatternFlags.ADVANCED);
+        HsrePattern pattern = cache.compile("paris|london", flags);
+        assertSame(pattern, cache.compile("paris|london", EnumSet.of(PatternFlags.ADVANCED)));
+        assertNotSame(pattern, cache.compile("paris|london", EnumSet.of(PatternFlags.ADVANCED, PatternFlags.ICASE)));
+        assertNotSame(pattern, cache.compile("paris|lisbon", flags));
+        // changing the set afterwards changes nothing.
+        flags.add(PatternFlags.ICASE);
+        assertEquals(EnumSet.of(PatternFlags.ADVANCED), pattern.flags());
+        assertSame(pattern, cache.compile("paris|london", EnumSet.of(PatternFlags.ADVANCED)));
+        assertEquals(3, cache.size());
+
+        assertSame(HsrePattern.compileCached("a+b", PatternFlags.ADVANCED),
+                HsrePattern.compileCached("a+b", EnumSet.of(PatternFlags.ADVANCED)));
+    }
+
+    @Test
+    public void errors() throws Exception {
+        PatternCache cache = new PatternCache(64L * 1024 * 1024);
+        for (int x = 0; x < 2; x++) {
+            try {
+                cache.compile("a(b", EnumSet.of(PatternFlags.ADVANCED));
+                fail("bad pattern");
+            } catch (RegexException e) {
+                // expected
+            }
+        }
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void bounded() throws Exception {
+        HsrePattern big = (HsrePattern) HsrePattern.compile("\\m(?:[[:alpha:]]+ing|[0-9]{2,4}[-/.][0-9]{2})\\M",
+                PatternFlags.ADVANCED);
+        int bytes = PatternCache.bytes(big);
+        assertTrue(bytes > PatternCache.bytes((HsrePattern) HsrePattern.compile("a", PatternFlags.ADVANCED)));
+        PatternCache cache = new PatternCache(8L * bytes);
+        for (int x = 0; x < 20; x++) {
+            cache.compile(big.pattern() + "|x" + x, big.flags());
+        }
+        assertTrue(cache.size() < 20);
+        assertTrue(cache.size() > 0);
+    }
+
+    @Test
+    public void dfaCaches() throws Exception {
+        // a machine's state set cache can grow to the cap as the pattern is used, and it's charged for that.
+        HsrePattern lazy = (HsrePattern) HsrePattern.compile("paris|london", PatternFlags.ADVANCED);
+        assertTrue(PatternCache.bytes(lazy) > DfaCache.MAX_BYTES);
+        // but a complete table never grows; that's charged as it is.
+        HsrePattern eager = (HsrePattern) HsrePattern.compile("paris|london", PatternFlags.ADVANCED, PatternFlags.EAGER);
+        assertTrue(eager.guts.search.cache().complete());
+        assertEquals(eager.guts.search.cache().bytes(), eager.guts.search.maxCacheBytes());
+        // all but the second cache of the main machine that finding the leftmost start can use; see Runtime#leftmost.
+        assertTrue(PatternCache.bytes(eager) < PatternCache.bytes(lazy) / 2);
+        assertTrue(PatternCache.bytes(eager) < DfaCache.maxBytes(eager.guts.tree.machine) + DfaCache.MAX_BYTES / 8);
+        // a tiny machine can't have many state sets, whatever the cap.
+        assertTrue(PatternCache.bytes((HsrePattern) HsrePattern.compile("a", PatternFlags.ADVANCED)) < DfaCache.MAX_BYTES / 16);
+    }
+
+    @Test
+    public void compiledOnce() throws Exception {
+        final PatternCache cache = new PatternCache(64L * 1024 * 1024);
+        final StringBuilder alternation = new StringBuilder();
+        for (int x = 0; x < 300; x++) {
+            alternation.append(x == 0 ? "" : "|").append(String.format("w%03d[a-f]?x", x));
+        }
+        final CountDownLatch start = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<HsrePattern>> futures = Lists.newArrayList();
+            for (int t = 0; t < 8; t++) {
+                futures.add(executor.submit(new Callable<HsrePattern>() {
+                    @Override
+                    public HsrePattern call() throws Exception {
+                        start.await();
+                        return cache.compile(alternation.toString(), EnumSet.of(PatternFlags.ADVANCED));
+                    }
+                }));
+            }
+            start.countDown();
+            HsrePattern first = futures.get(0).get();
+            for (Future<HsrePattern> future : futures) {
+                // a second compilation would have made a different pattern.
+                assertSame(first, future.get());
+            }
+            assertTrue(first.matcher("a w123fx b").find());
+        } finally {
+            executor.shutdown();
+        }
+    }
+}
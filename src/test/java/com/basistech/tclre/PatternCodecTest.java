@@ -0,0 +1,175 @@
+/*
+* Copyright 2014 Basis Technology Corp.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package com.basistech.tclre;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.List;
+
+import com.google.common.collect.Lists;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+/**
+ * Patterns written and read back by {@link PatternCodec} have to match just as they did.
+ */
+public class PatternCodecTest {
+    private static final String DATA = "abcd xabcdd\nSinging ringing RING 12/31 1.1 colour foobar foobaz\n"
+            + "b𐎀c 𐎀𐎁x colr color 334 paris\nLondon";
+
+    private static List<RePattern> patterns() throws RegexException {
+        List<RePattern> patterns = Lists.newArrayList();
+        patterns.add(HsrePattern.compile("(a|ab)(c|bcd)(d*)", PatternFlags.ADVANCED));
+        patterns.add(HsrePattern.compile("\\m[[:alpha:]]+ing\\M", PatternFlags.ADVANCED, PatternFlags.ICASE));
+        patterns.add(HsrePattern.compile("([0-9])\\1", PatternFlags.ADVANCED));
+        patterns.add(HsrePattern.compile("foo(?=bar)|foo(?!bar)z", PatternFlags.ADVANCED));
+        patterns.add(HsrePattern.compile("[\\U00010380-\\U0001039F]+x", PatternFlags.ADVANCED, PatternFlags.EAGER));
+        patterns.add(HsrePattern.compile("^london$", PatternFlags.ADVANCED, PatternFlags.NLANCH, PatternFlags.ICASE));
+        patterns.add(HsrePattern.compile("colou?r", PatternFlags.EXTENDED));
+        return patterns;
+    }
+
+    private static byte[] write(List<RePattern> patterns) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        HsrePattern.write(patterns, bytes);
+        return bytes.toByteArray();
+    }
+
+    @Test
+    public void roundTrip() throws Exception {
+        List<RePattern> patterns = patterns();
+        byte[] bytes = write(patterns);
+        ByteBuffer direct = ByteBuffer.allocateDirect(bytes.length + 3);
+        direct.position(3);
+        direct.put(bytes);
+        direct.position(3);
+        List<List<RePattern>> copies = Arrays.asList(
+                HsrePattern.read(new ByteArrayInputStream(bytes)),
+                HsrePattern.read(direct));
+        assertEquals(3, direct.position());
+        for (List<RePattern> copy : copies) {
+            assertEquals(patterns.size(), copy.size());
+            for (int x = 0; x < patterns.size(); x++) {
+                RePattern pattern = patterns.get(x);
+                HsrePattern read = (HsrePattern) copy.get(x);
+                assertEquals(pattern.pattern(), read.pattern());
+                assertEquals(pattern.flags(), read.flags());
+                assertEquals(((HsrePattern) pattern).guts.prefix, read.guts.prefix);
+                assertEquals(pattern.pattern(), allMatches(pattern), allMatches(read));
+            }
+        }
+    }
+
+    @Test
+    public void pieces() throws Exception {
+        HsrePattern pattern = (HsrePattern) HsrePattern.compile("foo(?=bar)", PatternFlags.ADVANCED);
+        HsrePattern read = (HsrePattern) HsrePattern.read(ByteBuffer.wrap(write(
+                Lists.<RePattern>newArrayList(pattern)))).get(0);
+        assertEquals(pattern.guts.cflags, read.guts.cflags);
+        assertEquals(pattern.guts.info, read.guts.info);
+        assertEquals(pattern.guts.ntree, read.guts.ntree);
+        assertNull(read.guts.reverse);
+        assertNotNull(read.guts.laconSteps);
+        assertEquals(Arrays.toString(pattern.guts.laconSteps), Arrays.toString(read.guts.laconSteps));
+        assertEquals(Arrays.toString(pattern.guts.search.arcs), Arrays.toString(read.guts.search.arcs));
+        assertEquals(Arrays.toString(pattern.guts.search.states), Arrays.toString(read.guts.search.states));
+        for (int c : new int[] {0, 'a', 'b', 'f', 'o', 'r', 'z', 0xffff, 0x10380, Character.MAX_CODE_POINT}) {
+            assertEquals(pattern.guts.cm.getcolor(c), read.guts.cm.getcolor(c));
+        }
+        assertEquals(EnumSet.of(PatternFlags.ADVANCED), read.flags());
+    }
+
+    @Test
+    public void notPatterns() throws Exception {
+        byte[] bytes = write(patterns());
+        bytes[3]++;
+        try {
+            HsrePattern.read(ByteBuffer.wrap(bytes));
+            fail("wrong magic number");
+        } catch (IOException e) {
+            // expected
+        }
+        bytes = write(patterns());
+        try {
+            HsrePattern.read(ByteBuffer.wrap(Arrays.copyOf(bytes, bytes.length / 2)));
+            fail("truncated");
+        } catch (IOException e) {
+            // expected
+        }
+        // the count, then the length of the first pattern's string.
+        for (int offset : new int[] {8, 12}) {
+            for (int length : new int[] {Integer.MAX_VALUE, bytes.length, -1}) {
+                ByteBuffer corrupt = ByteBuffer.wrap(bytes.clone());
+                corrupt.putInt(offset, length);
+                try {
+                    HsrePattern.read(corrupt);
+                    fail("length " + length + " at " + offset);
+                } catch (IOException e) {
+                    // expected
+                }
+            }
+        }
+    }
+
+    @Test
+    public void corruptMachines() throws Exception {
+        byte[] bytes = write(Lists.newArrayList(HsrePattern.compile("a[bc]", PatternFlags.ADVANCED)));
+        // the header, the string, the flags and counts of the pattern, then the color map, then the search machine.
+        int colorMap = 12 + 4 + "a[bc]".length() + 8 + 8 + 4 + 4 + 8 + 4 + 4;
+        int search = colorMap + 4 + 10 * ByteBuffer.wrap(bytes).getInt(colorMap);
+        // a color out of range, then ncolors, pre and post.
+        assertCorrupt(bytes, colorMap + 4 + 8, ByteBuffer.allocate(2).putShort((short) 1000).array());
+        assertCorrupt(bytes, colorMap + 4 + 8, ByteBuffer.allocate(2).putShort((short) -2).array());
+        for (int offset : new int[] {search, search + 5, search + 9}) {
+            for (int value : new int[] {-1, 1000000}) {
+                assertCorrupt(bytes, offset, ByteBuffer.allocate(4).putInt(value).array());
+            }
+        }
+    }
+
+    private static void assertCorrupt(byte[] bytes, int offset, byte[] value) {
+        byte[] corrupt = bytes.clone();
+        System.arraycopy(value, 0, corrupt, offset, value.length);
+        try {
+            HsrePattern.read(ByteBuffer.wrap(corrupt));
+            fail(Arrays.toString(value) + " at " + offset);
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    private static String allMatches(RePattern pattern) {
+        StringBuilder sb = new StringBuilder();
+        ReMatcher matcher = pattern.matcher(DATA);
+        while (matcher.find()) {
+            sb.append(matcher.start()).append('-').append(matcher.end());
+            for (int g = 1; g <= matcher.groupCount(); g++) {
+                sb.append(' ').append(matcher.start(g)).append('-').append(matcher.end(g));
+            }
+            sb.append(';');
+        }
+        return sb.toString();
+    }
+}
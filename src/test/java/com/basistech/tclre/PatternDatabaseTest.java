@@ -0,0 +1,204 @@
+/*
+* Copyright 2014 Basis Technology Corp.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package com.basistech.tclre;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.BitSet;
+import java.util.EnumSet;
+import java.util.List;
+
+import com.google.common.collect.Lists;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Patterns in a database are read when they are used, and then behave like the ones that were written.
+ */
+public class PatternDatabaseTest {
+    private static final String DATA = "error  code=42 and foobar, 𐎀𐎁x\nLondon";
+
+    private static List<RePattern> patterns() throws RegexException {
+        List<RePattern> patterns = Lists.newArrayList();
+        patterns.add(HsrePattern.compile("error\\s+code=(\\d+)", PatternFlags.ADVANCED));
+        patterns.add(HsrePattern.compile("foo(?=bar)", PatternFlags.ADVANCED));
+        patterns.add(HsrePattern.compile("[\\U00010380-\\U0001039F]+x", PatternFlags.ADVANCED));
+        patterns.add(HsrePattern.compile("^london$", PatternFlags.ADVANCED, PatternFlags.NLANCH, PatternFlags.ICASE));
+        patterns.add(HsrePattern.compile("nowhere", PatternFlags.ADVANCED));
+        return patterns;
+    }
+
+    private static File write(List<RePattern> patterns) throws IOException {
+        File file = File.createTempFile("patterns", ".tclre");
+        file.deleteOnExit();
+        try (OutputStream out = new FileOutputStream(file)) {
+            HsrePatternDatabase.write(patterns, out);
+        }
+        return file;
+    }
+
+    @Test
+    public void lazy() throws Exception {
+        List<RePattern> patterns = patterns();
+        HsrePatternDatabase database = HsrePatternDatabase.open(write(patterns));
+        assertEquals(patterns.size(), database.size());
+        assertEquals(0, database.readCount());
+        // the string and flags don't need the whole pattern.
+        assertEquals("^london$", database.pattern(3).pattern());
+        assertEquals(EnumSet.of(PatternFlags.ADVANCED, PatternFlags.NLANCH, PatternFlags.ICASE),
+                database.pattern(3).flags());
+        assertEquals(0, database.readCount());
+
+        ReMatcher matcher = database.pattern(0).matcher(DATA);
+        assertTrue(matcher.find());
+        assertEquals("42", matcher.group(1));
+        assertEquals(1, database.readCount());
+
+        for (int x = 0; x < patterns.size(); x++) {
+            RePattern read = database.pattern(x);
+            assertEquals(patterns.get(x).pattern(), read.pattern());
+            assertEquals(patterns.get(x).flags(), read.flags());
+            ReMatcher expected = patterns.get(x).matcher(DATA);
+            ReMatcher actual = read.matcher(DATA);
+            boolean found = expected.find();
+            assertEquals(read.pattern(), found, actual.find());
+            if (found) {
+                assertEquals(expected.start(), actual.start());
+                assertEquals(expected.end(), actual.end());
+            }
+        }
+        assertEquals(patterns.size(), database.readCount());
+        // the same pattern every time.
+        assertTrue(((DatabasePattern) database.pattern(2)).get() == ((DatabasePattern) database.pattern(2)).get());
+    }
+
+    @Test
+    public void inSets() throws Exception {
+        List<RePattern> patterns = patterns();
+        HsrePatternDatabase database = HsrePatternDatabase.open(write(patterns));
+        BitSet expected = HsrePatternSet.of(patterns).matching(DATA);
+        assertEquals(expected, HsrePatternSet.of(database.patterns()).matching(DATA));
+        assertFalse(expected.get(4));
+
+        // serializing a pattern from a database serializes the pattern itself.
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            out.writeObject(database.pattern(1));
+        }
+        Object copy = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray())).readObject();
+        assertTrue(copy instanceof HsrePattern);
+        assertTrue(((RePattern) copy).matcher("foobar").find());
+    }
+
+    @Test
+    public void foreignPatterns() throws Exception {
+        final RePattern inner = HsrePattern.compile("foo", PatternFlags.ADVANCED);
+        RePattern other = new RePattern() {
+            @Override
+            public ReMatcher matcher(CharSequence data, ExecFlags... flags) {
+                return inner.matcher(data, flags);
+            }
+
+            @Override
+            public ReMatcher matcher(CharSequence data, EnumSet<ExecFlags> flags) {
+                return inner.matcher(data, flags);
+            }
+
+            @Override
+            public String pattern() {
+                return inner.pattern();
+            }
+
+            @Override
+            public EnumSet<PatternFlags> flags() {
+                return inner.flags();
+            }
+        };
+        List<RePattern> patterns = patterns();
+        patterns.add(other);
+        try {
+            HsrePatternDatabase.write(patterns, new ByteArrayOutputStream());
+            fail("database");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        try {
+            HsrePattern.write(patterns, new ByteArrayOutputStream());
+            fail("plain");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        try {
+            HsrePatternSet.of(patterns);
+            fail("set");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void notDatabase() throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        // the plain form isn't a database.
+        HsrePattern.write(patterns(), bytes);
+        try {
+            HsrePatternDatabase.open(ByteBuffer.wrap(bytes.toByteArray()));
+            fail("not a database");
+        } catch (IOException e) {
+            // expected
+        }
+        bytes.reset();
+        HsrePatternDatabase.write(patterns(), bytes);
+        try {
+            HsrePatternDatabase.open(ByteBuffer.wrap(bytes.toByteArray(), 0, 20).slice());
+            fail("truncated");
+        } catch (IOException e) {
+            // expected
+        }
+        for (int count : new int[] {Integer.MAX_VALUE, -1}) {
+            ByteBuffer corrupt = ByteBuffer.wrap(bytes.toByteArray());
+            corrupt.putInt(8, count);
+            try {
+                HsrePatternDatabase.open(corrupt);
+                fail("count " + count);
+            } catch (IOException e) {
+                // expected
+            }
+        }
+        // a bad length inside a pattern shows up when the pattern is used.
+        ByteBuffer corrupt = ByteBuffer.wrap(bytes.toByteArray());
+        corrupt.putInt(corrupt.getInt(12), Integer.MAX_VALUE);
+        HsrePatternDatabase database = HsrePatternDatabase.open(corrupt);
+        try {
+            database.pattern(0).matcher("a");
+            fail("corrupt pattern");
+        } catch (RegexRuntimeException e) {
+            assertTrue(e.getCause() instanceof IOException);
+        }
+    }
+}
@@ -0,0 +1,122 @@
+/*
+* Copyright 2014 Basis Technology Corp.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package com.basistech.tclre;
+
+import java.util.EnumSet;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * The reversed main machine, which finds where a match starts.
+ */
+public class ReverseMachineTest {
+
+    private static HsrePattern compile(String exp) throws RegexException {
+        return (HsrePattern) HsrePattern.compile(exp, PatternFlags.ADVANCED);
+    }
+
+    private static int leftmost(String exp, String data, int end, int stop) throws RegexException {
+        Runtime runtime = new Runtime();
+        runtime.setData(data, data.toCharArray());
+        // this sets up the runtime for the pattern and the data.
+        runtime.exec(compile(exp), 0, 0, data.length(), EnumSet.noneOf(ExecFlags.class));
+        return new Dfa(runtime, runtime.g.reverse).leftmost(end, stop);
+    }
+
+    @Test
+    public void leftmost() throws Exception {
+        assertEquals(1, leftmost("b+c", "abbbc", 5, 0));
+        assertEquals(3, leftmost("b+c", "abbbc", 5, 3));
+        assertEquals(-1, leftmost("b+c", "abbbc", 4, 0));
+        assertEquals(3, leftmost("abcd|c", "xabcd", 4, 0));
+        assertEquals(1, leftmost("abcd|c", "xabcd", 5, 0));
+        assertEquals(2, leftmost("a*", "xyz", 2, 0));
+        assertEquals(1, leftmost("𐎀+", "a𐎀𐎀b", 5, 0));
+    }
+
+    @Test
+    public void context() throws Exception {
+        assertEquals(0, leftmost("^ab", "abab", 2, 0));
+        assertEquals(-1, leftmost("^ab", "abab", 4, 0));
+        assertEquals(-1, leftmost("\\mfoo", "xfoo foo", 4, 0));
+        assertEquals(5, leftmost("\\mfoo", "xfoo foo", 8, 0));
+        assertEquals(-1, leftmost("foo\\M", "foox", 3, 0));
+        assertEquals(1, leftmost("o+$", "foo", 3, 0));
+        assertEquals(-1, leftmost("o+$", "foox", 3, 0));
+        assertNull(compile("foo(?=bar)").guts.reverse);
+    }
+
+    @Test
+    public void find() throws Exception {
+        ReMatcher matcher = compile("abcd|c").matcher("xabcd c");
+        assertEquals(true, matcher.find());
+        assertEquals(1, matcher.start());
+        assertEquals(5, matcher.end());
+        assertEquals(true, matcher.find());
+        assertEquals(6, matcher.start());
+        matcher = compile("a[^x]*b|c").matcher("aaaaaaaac");
+        assertEquals(true, matcher.find());
+        assertEquals(8, matcher.start());
+        // the earliest start isn't that of the match that ends first.
+        matcher = compile("a[^x]*b|c").matcher("xxaacab");
+        assertEquals(true, matcher.find());
+        assertEquals(2, matcher.start());
+        assertEquals(7, matcher.end());
+        matcher = compile("(?:a|b)+c|b").matcher("aab ab");
+        assertEquals(true, matcher.find());
+        assertEquals(2, matcher.start());
+        assertEquals(true, matcher.find());
+        assertEquals(5, matcher.start());
+    }
+
+    private static int reach(String exp, String data, int start, int last) throws RegexException {
+        Runtime runtime = new Runtime();
+        runtime.setData(data, data.toCharArray());
+        runtime.exec(compile(exp), 0, 0, data.length(), EnumSet.noneOf(ExecFlags.class));
+        Cnfa machine = runtime.g.tree.machine;
+        return new Dfa(runtime, machine).reach(new Dfa(runtime, machine.unanchored()), start, last);
+    }
+
+    @Test
+    public void reach() throws Exception {
+        assertEquals(7, reach("a[^x]*b|c", "xxaacab", 0, 4));
+        assertEquals(7, reach("a[^x]*b|c", "xxaacab", 3, 3));
+        assertEquals(5, reach("a[^x]*b|c", "xxaacab", 4, 4));
+        assertEquals(-1, reach("a[^x]*b|c", "xxaacxb", 0, 3));
+        assertEquals(5, reach("a[^x]*b|c", "xxaacxb", 0, 4));
+        // starts after 'last' don't count.
+        assertEquals(-1, reach("ab", "xxab", 0, 1));
+        assertEquals(4, reach("ab", "xxab", 0, 2));
+        assertEquals(-1, reach("\\mab", "xab", 1, 1));
+    }
+
+    @Test(timeout = 10000)
+    public void linear() throws Exception {
+        // trying each 'a' in turn would scan to the end from each one.
+        StringBuilder data = new StringBuilder();
+        for (int x = 0; x < 200000; x++) {
+            data.append('a');
+        }
+        data.append('c');
+        ReMatcher matcher = compile("a[^x]*b|c").matcher(data);
+        assertEquals(true, matcher.find());
+        assertEquals(200000, matcher.start());
+    }
+}
@@ -34,6 +34,15 @@ public class SmpTest {
         assertThat("b\uD800\uDF80", matches("b.", PatternFlags.BASIC));
     }
 
+    @Test
+    public void loneSurrogates() throws Exception {
+        // a high surrogate without a low one after it is a char of its own.
+        assertThat("\uD800x", matches(".x", PatternFlags.ADVANCED));
+        assertThat("\uD800\uD800", matches("..", PatternFlags.ADVANCED));
+        assertThat("\uD800x", matches("\\W\\mx", PatternFlags.ADVANCED));
+        assertThat("\uD800\uDF80x", not(matches("..x", PatternFlags.ADVANCED)));
+    }
+
     @Test
     public void smpPattern() throws Exception {
         assertThat("b", not(matches("\uD800\uDF80", PatternFlags.BASIC)));